@@ -2,7 +2,10 @@ package org.jboss.soa.esb.actions;
 
 import java.io.PrintStream;
 
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigProperty;
 import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.helpers.ConfigTreeBinder;
 import org.jboss.soa.esb.message.Message;
 import org.jboss.soa.esb.message.MessagePayloadProxy;
 import org.jboss.soa.esb.message.body.content.BytesBody;
@@ -19,13 +22,18 @@ public class SystemPrintln extends AbstractActionPipelineProcessor {
 	public static final String PRINT_STREAM = "outputstream";
     public static final String DEFAULT_PRE_MESSAGE = "Message structure";
     
+    private static final ConfigTreeBinder<SystemPrintln> BINDER = ConfigTreeBinder.forClass(SystemPrintln.class);
+    
     private MessagePayloadProxy payloadProxy;
     
-    private String printlnMessage;
+    @ConfigProperty(name = PRE_MESSAGE)
+    private String printlnMessage = DEFAULT_PRE_MESSAGE;
     
-	private boolean printFullMessage;
+	@ConfigProperty(name = FULL_MESSAGE)
+	private boolean printFullMessage = false;
 	
-	private boolean useOutputStream;
+	@ConfigProperty(name = PRINT_STREAM)
+	private boolean useOutputStream = true;
 
     /**
 	 * Public constructor.
@@ -35,12 +43,12 @@ public class SystemPrintln extends AbstractActionPipelineProcessor {
 	 * 
 	 * @param config
 	 *            Configuration.
+	 * @throws ConfigurationException
+	 *            if an attribute has an invalid value.
 	 */
-	public SystemPrintln(ConfigTree config) {
+	public SystemPrintln(ConfigTree config) throws ConfigurationException {
 		
-		printlnMessage = config.getAttribute(PRE_MESSAGE, DEFAULT_PRE_MESSAGE);
-		printFullMessage = (config.getAttribute(FULL_MESSAGE, "false").equalsIgnoreCase("true") ? true : false);
-		useOutputStream = (config.getAttribute(PRINT_STREAM, "true").equals("true") ? true : false);
+		BINDER.apply(config, this);
 
         String primaryDataLocation = config.getAttribute("datalocation");
         if(primaryDataLocation != null) {
@@ -0,0 +1,46 @@
+package org.jboss.soa.esb.helpers;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a field to be filled from an attribute of a {@link ConfigTree} by {@link ConfigTreeBinder}.
+ * <p/>
+ * Supported field types are String, int, long, float, boolean (and their wrappers),
+ * {@link java.time.Duration} and enums.  When the attribute is not set the field keeps
+ * the value it was initialised with, so the field initialiser is the default value.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface ConfigProperty {
+
+    /**
+     * @return String - the attribute name, the name of the field if empty
+     */
+    String name() default "";
+
+    /**
+     * @return boolean - true if the attribute must be set
+     */
+    boolean required() default false;
+
+    /**
+     * @return long - the smallest value accepted for int, long and float fields
+     */
+    long min() default Long.MIN_VALUE;
+
+    /**
+     * @return long - the largest value accepted for int, long and float fields
+     */
+    long max() default Long.MAX_VALUE;
+
+    /**
+     * @return TimeUnit - the unit of plain numeric values of Duration fields
+     */
+    TimeUnit unit() default TimeUnit.MILLISECONDS;
+}
@@ -1,29 +1,34 @@
 package org.jboss.soa.esb.helpers;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.log4j.Logger;
 import org.jboss.soa.esb.ConfigurationException;
@@ -46,10 +51,18 @@ public class ConfigTree implements Serializable, Cloneable {
 	
 	private String _name;
 	
-	private Map<String, String> _attributes;
+	private ConfigTreeAttributes _attributes;
 	
 	private List<Child> _childs;
 
+	/**
+	 * Lookup caches, copy-on-write and lazy loading state, allocated on first use so that
+	 * nodes using none of them only pay for this reference.
+	 */
+	private transient Features _features;
+
+	private static final int DEFAULT_LAZY_DEPTH = 2;
+
 	private static transient Logger _logger = Logger.getLogger(ConfigTree.class);
 	
     public ConfigTree getParent() {
@@ -59,10 +72,21 @@ public class ConfigTree implements Serializable, Cloneable {
     private void setParent(ConfigTree dad) {
     	
         if (null != _dad && null != _dad._childs){
-        	_dad._childs.remove(this);
+        	for (ListIterator<Child> II = _dad._childs.listIterator(); II.hasNext();)
+        		if (II.next()._obj == this) {
+        			II.remove();
+        			break;
+        		}
+        	_dad.dropChildViews();
+        	_dad.modified();
+        	_dad = null;
         }
         
+        if (dad instanceof FrozenConfigTree){
+        	throw new UnsupportedOperationException("ConfigTree snapshot is read only");
+        }
         if (null != dad){
+        	dad.modified();
         	dad.addChild(this);
         }
     }
@@ -75,7 +99,11 @@ public class ConfigTree implements Serializable, Cloneable {
 		if (null == name){
 			throw new IllegalArgumentException();
 		}
+		modified();
 		_name = name;
+		if (null != _dad){
+			_dad.dropChildViews();
+		}
 	}
 
     public ConfigTree(String name) {
@@ -83,13 +111,25 @@ public class ConfigTree implements Serializable, Cloneable {
     }
 
     public ConfigTree(String name, ConfigTree dad) {
-        setName(name);
+        if (null == name){
+            throw new IllegalArgumentException();
+        }
+        _name = name;
         setParent(dad);
     }
 
     protected ConfigTree(ConfigTree other) {
         copyFrom(other);
     } 
+
+    /**
+     * for FrozenConfigTree, which holds its content itself: 'this' is not added to the children of dad
+     */
+    ConfigTree(String name, ConfigTree dad, boolean pureText) {
+        _name = name;
+        _dad = dad;
+        _pureText = pureText;
+    }
     
     
     /**
@@ -102,11 +142,17 @@ public class ConfigTree implements Serializable, Cloneable {
     public String setAttribute(String name, String value) {
         if (null == name)
             throw new IllegalArgumentException("Attribute name must be non null");
-        if (null == _attributes)
-            _attributes = new HashMap<String, String>();
-        String oldVal = _attributes.remove(name);
-        if (null != value)
-            _attributes.put(name, value);
+        ownAttributes();
+        modified();
+        String oldVal;
+        if (null == value)
+            oldVal = (null == _attributes) ? null : _attributes.remove(name);
+        else {
+            if (null == _attributes)
+                _attributes = new ConfigTreeAttributes();
+            oldVal = _attributes.put(name, value);
+        }
+        dropTypedValue(name);
         return oldVal;
     } 
 
@@ -114,6 +160,9 @@ public class ConfigTree implements Serializable, Cloneable {
      * @return int - the number of non null attributes that this node has been assigned
      */
     public int attributeCount() {
+        ConfigTree shared = sharedAttributes();
+        if (null != shared)
+            return shared.attributeCount();
         return (null == _attributes) ? 0 : _attributes.size();
     } 
 
@@ -125,6 +174,9 @@ public class ConfigTree implements Serializable, Cloneable {
      *         attribute is not defined.
      */
     public String getAttribute(String name) {
+        ConfigTree shared = sharedAttributes();
+        if (null != shared)
+            return shared.getAttribute(name);
         return (null == _attributes) ? null : _attributes.get(name);
     } 
 
@@ -138,50 +190,120 @@ public class ConfigTree implements Serializable, Cloneable {
      *         the value is not defined.
      */
     public String getAttribute(String name, String defaultValue) {
-        String ret = (null == _attributes) ? null : _attributes.get(name);
+        String ret = getAttribute(name);
         return (ret != null ? ret : defaultValue);
     } 
 
-    public long getLongAttribute(String name, long defaultValue) {
-        String value = getAttribute(name);
-
-        if(value != null) {
-            try {
-                return Long.parseLong(value.trim());
-            } catch(NumberFormatException e) {
-                logger.error("Invalid value '" + value + "' for property '" + name + "'.  Must be an long/integer value.  Returning default value '" + defaultValue + "'.");
-            }
-        }
+    public int getIntAttribute(String name, int defaultValue) {
+        TypedValue typed = typedValue(name, TypedValue.INT, null);
+        return (null != typed && typed._valid) ? (int) typed._long : defaultValue;
+    }
 
-        return defaultValue;
+    public long getLongAttribute(String name, long defaultValue) {
+        TypedValue typed = typedValue(name, TypedValue.LONG, null);
+        return (null != typed && typed._valid) ? typed._long : defaultValue;
     }
 
     public float getFloatAttribute(String name, float defaultValue) {
-        String value = getAttribute(name);
+        TypedValue typed = typedValue(name, TypedValue.FLOAT, null);
+        return (null != typed && typed._valid) ? typed._float : defaultValue;
+    }
 
-        if(value != null) {
-            try {
-                return Float.parseFloat(value.trim());
-            } catch(NumberFormatException e) {
-                logger.error("Invalid value '" + value + "' for property '" + name + "'.  Must be an float value.  Returning default value '" + defaultValue + "'.");
-            }
-        }
+    public boolean getBooleanAttribute(String name, boolean defaultValue) {
+        TypedValue typed = typedValue(name, TypedValue.BOOLEAN, null);
+        return (null != typed && typed._valid) ? (0 != typed._long) : defaultValue;
+    }
 
-        return defaultValue;
+    /**
+     * Retrieve an attribute as a Duration.
+     * <br/>The value is either an ISO-8601 duration (e.g. PT5S) or a whole number of the unit supplied.
+     *
+     * @param name         String - the search key.
+     * @param unit         TimeUnit - the unit of plain numeric values.
+     * @param defaultValue Duration - returned if the attribute is not set or invalid.
+     * @return Duration - the parsed value, or the default.
+     */
+    public Duration getDurationAttribute(String name, TimeUnit unit, Duration defaultValue) {
+        if (null == unit)
+            throw new IllegalArgumentException();
+        TypedValue typed = typedValue(name, TypedValue.DURATION, unit);
+        return (null != typed && typed._valid) ? (Duration) typed._object : defaultValue;
     }
 
-    public boolean getBooleanAttribute(String name, boolean defaultValue) {
-        String value = getAttribute(name);
+    /**
+     * Retrieve an attribute as an enum constant, matching the constant name case insensitively.
+     *
+     * @param name         String - the search key.
+     * @param type         Class - the enum type.
+     * @param defaultValue the value returned if the attribute is not set or invalid.
+     * @return the matching constant, or the default.
+     */
+    public <E extends Enum<E>> E getEnumAttribute(String name, Class<E> type, E defaultValue) {
+        if (null == type)
+            throw new IllegalArgumentException();
+        TypedValue typed = typedValue(name, TypedValue.ENUM, type);
+        return (null != typed && typed._valid) ? type.cast(typed._object) : defaultValue;
+    }
 
-        if(value != null) {
-            try {
-                return Boolean.parseBoolean(value.trim());
-            } catch(NumberFormatException e) {
-                logger.error("Invalid value '" + value + "' for property '" + name + "'.  Must be an boolean value.  Returning default value '" + defaultValue + "'.");
+    /**
+     * Parsed form of an attribute value, cached per node until the attribute is set again.
+     * Invalid values are logged once, when first parsed.
+     *
+     * @return TypedValue - the parsed value, null if the attribute is not defined
+     */
+    private TypedValue typedValue(String name, int kind, Object qualifier) {
+        String value = getAttribute(name);
+        if (null == value)
+            return null;
+        Features features = features();
+        Object[] cache = features.typedValues;
+        int slot = -1;
+        if (null != cache)
+            for (int i = 0; i < cache.length; i += 2)
+                if (name.equals(cache[i])) {
+                    slot = i;
+                    break;
+                }
+        TypedValue typed = (slot < 0) ? null : (TypedValue) cache[slot + 1];
+        if (null == typed || !typed.matches(value, kind, qualifier)) {
+            typed = TypedValue.parse(value, kind, qualifier);
+            if (!typed._valid)
+                logger.error("Invalid value '" + value + "' for property '" + name + "'.  Must be " + TypedValue.describe(kind, qualifier) + ".  Returning default value.");
+            // publish a copy; an entry lost to a concurrent reader is simply parsed again
+            Object[] next;
+            if (slot >= 0) {
+                next = cache.clone();
+            } else if (null == cache) {
+                next = new Object[2];
+                slot = 0;
+            } else {
+                next = Arrays.copyOf(cache, cache.length + 2);
+                slot = cache.length;
             }
+            next[slot] = name;
+            next[slot + 1] = typed;
+            features.typedValues = next;
         }
+        return typed;
+    }
 
-        return defaultValue;
+    private void dropTypedValue(String name) {
+        Features features = _features;
+        Object[] cache = (null == features) ? null : features.typedValues;
+        if (null == cache)
+            return;
+        for (int i = 0; i < cache.length; i += 2)
+            if (name.equals(cache[i])) {
+                if (2 == cache.length) {
+                    features.typedValues = null;
+                } else {
+                    Object[] next = new Object[cache.length - 2];
+                    System.arraycopy(cache, 0, next, 0, i);
+                    System.arraycopy(cache, i + 2, next, i, cache.length - i - 2);
+                    features.typedValues = next;
+                }
+                return;
+            }
     }
 
     /**
@@ -205,12 +327,16 @@ public class ConfigTree implements Serializable, Cloneable {
     /**
      * obtain the list of all attribute names
      *
-     * @return Set<String>  - the set of keys that have been assigned a non null value
+     * @return Set<String>  - read only set of the keys that have been assigned a non null value,
+     *         in the order they were first assigned
      */
     public Set<String> getAttributeNames() {
+        ConfigTree shared = sharedAttributes();
+        if (null != shared)
+            return shared.getAttributeNames();
         return (null == _attributes)
                 ? new HashSet<String>()
-                : _attributes.keySet();
+                : _attributes.names();
     } 
 
     /**
@@ -219,10 +345,13 @@ public class ConfigTree implements Serializable, Cloneable {
      * @return List<KeyValuePair> - containing all attributes
      */
     public List<KeyValuePair> attributesAsList() {
+        ConfigTree shared = sharedAttributes();
+        if (null != shared)
+            return shared.attributesAsList();
         List<KeyValuePair> oRet = new ArrayList<KeyValuePair>();
         if (null != _attributes)
-            for (Map.Entry<String, String> oCurr : _attributes.entrySet())
-                oRet.add(new KeyValuePair(oCurr.getKey(), oCurr.getValue()));
+            for (int i = 0; i < _attributes.size(); i++)
+                oRet.add(new KeyValuePair(_attributes.nameAt(i), _attributes.valueAt(i)));
         return oRet;
     } 
 
@@ -232,8 +361,11 @@ public class ConfigTree implements Serializable, Cloneable {
      * @return List<KeyValuePair> - containing all child elements with tag name "property"
      */
     public List<KeyValuePair> childPropertyList() {
+        ConfigTree shared = sharedChildren();
+        if (null != shared)
+            return shared.childPropertyList();
         List<KeyValuePair> oRet = new ArrayList<KeyValuePair>();
-        for (ConfigTree current : getChildren("property")) {
+        for (ConfigTree current : childrenNamed("property")) {
             String name = current.getAttribute("name");
             if (null != name)
                 oRet.add(new KeyValuePair(name, current.getAttribute("value")));
@@ -248,18 +380,26 @@ public class ConfigTree implements Serializable, Cloneable {
      * @return String - concatenation of all String segments (equivalent to xml text nodes)
      */
     public String getWholeText() {
+        ConfigTree shared = sharedChildren();
+        if (null != shared)
+            return shared.getWholeText();
         if (null == _childs)
             return "";
+        // most elements hold a single text segment, returned as is
+        String single = null;
         StringBuilder sb = null;
         for (Child child : _childs) {
             if (!(child._obj instanceof String))
                 continue;
-            if (null == sb)
-                sb = new StringBuilder((String) child._obj);
-            else
+            if (null == single)
+                single = (String) child._obj;
+            else {
+                if (null == sb)
+                    sb = new StringBuilder(single);
                 sb.append((String) child._obj);
+            }
         }
-        return sb.toString();
+        return (null != sb) ? sb.toString() : (null != single) ? single : "";
 
     } 
 
@@ -272,12 +412,12 @@ public class ConfigTree implements Serializable, Cloneable {
     public String getFirstTextChild(String name) {
         if (null == name)
             throw new IllegalArgumentException();
-        if (null != _childs)
-            for (Child oCurr : _childs) {
-                ConfigTree tree = oCurr.getTree();
-                if (null != tree && tree.isPureText() && name.equals(tree.getName()))
-                    return tree.getWholeText();
-            }
+        ConfigTree shared = sharedChildren();
+        if (null != shared)
+            return shared.getFirstTextChild(name);
+        for (ConfigTree tree : childrenNamed(name))
+            if (tree.isPureText())
+                return tree.getWholeText();
         return null;
     } 
 
@@ -290,15 +430,20 @@ public class ConfigTree implements Serializable, Cloneable {
     public String[] getTextChildren(String name) {
         if (null == name)
             throw new IllegalArgumentException();
-        if (null == _childs)
-            return new String[0];
-        List<String> oRet = new ArrayList<String>();
-        for (Child oCurr : _childs) {
-            ConfigTree tree = oCurr.getTree();
-            if (null != tree && tree.isPureText() && name.equals(tree.getName()))
-                oRet.add(tree.getWholeText());
-        }
-        return oRet.toArray(new String[oRet.size()]);
+        ConfigTree shared = sharedChildren();
+        if (null != shared)
+            return shared.getTextChildren(name);
+        ConfigTree[] named = childrenNamed(name);
+        int count = 0;
+        for (ConfigTree tree : named)
+            if (tree.isPureText())
+                count++;
+        String[] oRet = new String[count];
+        count = 0;
+        for (ConfigTree tree : named)
+            if (tree.isPureText())
+                oRet[count++] = tree.getWholeText();
+        return oRet;
     } 
 
     /**
@@ -307,6 +452,7 @@ public class ConfigTree implements Serializable, Cloneable {
      * @param value String - the text to assign to the added child node
      */
     public void addTextChild(String value) {
+        modified();
         new Child(value);
     }
 
@@ -315,19 +461,83 @@ public class ConfigTree implements Serializable, Cloneable {
         new Child(child);
     }
 
+    /**
+     * append a new child element to a tree under construction
+     * <br/>Unlike the ConfigTree(name, dad) constructor this skips the walk to the root
+     * that drops snapshots and pins lazy subtrees, none of which a tree being parsed,
+     * decoded or cloned has yet, so building a tree stays a single pass
+     *
+     * @param name String - the name of the new child
+     * @return ConfigTree - the new child, last in document order
+     */
+    ConfigTree appendChild(String name) {
+        ConfigTree child = new ConfigTree(name);
+        addChild(child);
+        return child;
+    }
+
+    /**
+     * append a text child to a tree under construction, see appendChild()
+     */
+    void appendText(String value) {
+        new Child(value);
+    }
+
+    /**
+     * assign an attribute of a tree under construction, see appendChild()
+     */
+    void putAttribute(String name, String value) {
+        if (null == name || null == value)
+            throw new IllegalArgumentException("Attribute name and value must be non null");
+        if (null == _attributes)
+            _attributes = new ConfigTreeAttributes();
+        _attributes.put(name, value);
+    }
+
     /**
      * retrieve list of child elements of 'this' that are instances of ConfigTree
      *
      * @return ConfigTree[] - Array containing all child elements of class ConfigTree
      */
     public ConfigTree[] getAllChildren() {
+        return ((ConfigTreeChildList) children()).copy();
+    } 
+
+    /**
+     * read only view of the child elements of 'this' that are instances of ConfigTree
+     * <br/>The view is cached, repeated calls return the same instance until the children
+     * change, so iterating over it or calling get(int) allocates no arrays
+     *
+     * @return List<ConfigTree> - child elements of class ConfigTree, in document order
+     */
+    public List<ConfigTree> children() {
+        ownChildren();
         if (null == _childs)
-            return new ConfigTree[]{};
-        List<ConfigTree> oRet = new ArrayList<ConfigTree>();
-        for (Child oCurr : _childs)
-            if (null != oCurr.getTree())
-                oRet.add(oCurr.getTree());
-        return oRet.toArray(new ConfigTree[oRet.size()]);
+            return ConfigTreeChildList.EMPTY;
+        Features features = features();
+        ConfigTreeChildList list = features.childList;
+        if (null == list) {
+            List<ConfigTree> trees = new ArrayList<ConfigTree>(_childs.size());
+            for (Child oCurr : _childs)
+                if (null != oCurr.getTree())
+                    trees.add(oCurr.getTree());
+            list = new ConfigTreeChildList(trees.toArray(new ConfigTree[trees.size()]));
+            features.childList = list;
+        }
+        return list;
+    } 
+
+    /**
+     * read only view of the child elements of 'this' with name = arg0
+     * <br/>The view is cached like {@link #children()}
+     *
+     * @param name String - the name of child nodes to filter
+     * @return List<ConfigTree> - child elements of class ConfigTree with name provided, in document order
+     */
+    public List<ConfigTree> children(String name) {
+        if (null == name)
+            throw new IllegalArgumentException();
+        return namedList(name);
     } 
 
     /**
@@ -339,13 +549,7 @@ public class ConfigTree implements Serializable, Cloneable {
     public ConfigTree[] getChildren(String name) {
         if (null == name)
             throw new IllegalArgumentException();
-        if (null == _childs)
-            return new ConfigTree[0];
-        List<ConfigTree> oRet = new ArrayList<ConfigTree>();
-        for (Child oCurr : _childs)
-            if (name.equals(oCurr.getName()))
-                oRet.add(oCurr.getTree());
-        return oRet.toArray(new ConfigTree[oRet.size()]);
+        return namedList(name).copy();
     } 
 
     /**
@@ -357,18 +561,72 @@ public class ConfigTree implements Serializable, Cloneable {
     public ConfigTree getFirstChild(String name) {
         if (null == name)
             throw new IllegalArgumentException();
-        if (null != _childs)
-            for (Child oCurr : _childs)
-                if (name.equals(oCurr.getName()))
-                    return oCurr.getTree();
-        return null;
+        ConfigTree[] named = childrenNamed(name);
+        return (0 == named.length) ? null : named[0];
+    } 
+
+    /**
+     * shared (not to be modified) array of the ConfigTree children with the name provided
+     *
+     * @param name String - the name of child nodes to filter
+     * @return ConfigTree[] - child elements with that name, in document order
+     */
+    private ConfigTree[] childrenNamed(String name) {
+        return namedList(name).array();
+    } 
+
+    private ConfigTreeChildList namedList(String name) {
+        ownChildren();
+        if (null == _childs)
+            return ConfigTreeChildList.EMPTY;
+        Features features = features();
+        Map<String, ConfigTreeChildList> index = features.childIndex;
+        if (null == index) {
+            index = buildChildIndex();
+            features.childIndex = index;
+        }
+        ConfigTreeChildList named = index.get(name);
+        return (null == named) ? ConfigTreeChildList.EMPTY : named;
+    } 
+
+    private void dropChildViews() {
+        Features features = _features;
+        if (null != features) {
+            features.childIndex = null;
+            features.childList = null;
+        }
+    } 
+
+    private Map<String, ConfigTreeChildList> buildChildIndex() {
+        Map<String, List<ConfigTree>> grouped = new HashMap<String, List<ConfigTree>>();
+        for (Child oCurr : _childs) {
+            ConfigTree tree = oCurr.getTree();
+            if (null == tree)
+                continue;
+            List<ConfigTree> list = grouped.get(tree._name);
+            if (null == list) {
+                list = new ArrayList<ConfigTree>(2);
+                grouped.put(tree._name, list);
+            }
+            list.add(tree);
+        }
+        Map<String, ConfigTreeChildList> index = new HashMap<String, ConfigTreeChildList>(grouped.size() * 2);
+        for (Map.Entry<String, List<ConfigTree>> oCurr : grouped.entrySet())
+            index.put(oCurr.getKey(), new ConfigTreeChildList(oCurr.getValue().toArray(new ConfigTree[oCurr.getValue().size()])));
+        return index;
     } 
 
     /**
      * purge the list of children
      */
     public void removeAllChildren() {
+        modified();
+        if (null != sharedChildren()) {
+            _features.cowChildren = false;
+            releaseCowSource();
+        }
         _childs = null;
+        dropChildViews();
     } 
 
     /**
@@ -379,19 +637,304 @@ public class ConfigTree implements Serializable, Cloneable {
     public void removeChildrenByName(String name) {
         if (null == name)
             throw new IllegalArgumentException();
+        modified();
+        ownChildren();
         if (null != _childs)
             for (ListIterator<Child> II = _childs.listIterator(); II.hasNext();)
                 if (name.equals(II.next().getName()))
                     II.remove();
+        dropChildViews();
     } 
 
     /**
      * @return the number of child nodes (of any type)
      */
     public int childCount() {
+        ConfigTree shared = sharedChildren();
+        if (null != shared)
+            return shared.childCount();
         return (null == _childs) ? 0 : _childs.size();
     } 
 
+    /**
+     * @param index int - position of the child node, in document order
+     * @return Object - the ConfigTree or String child node at that position
+     */
+    Object childAt(int index) {
+        ConfigTree shared = sharedChildren();
+        if (null != shared)
+            return shared.childAt(index);
+        return _childs.get(index)._obj;
+    } 
+
+    /**
+     * estimated heap of 'this' and the attribute and child storage it owns, not
+     * counting strings, child nodes or caches rebuilt on demand
+     */
+    long estimateOwnSize() {
+        long size = ShallowSize.NODE;
+        if (ownsAttributes() && null != _attributes)
+            size += _attributes.estimateSize();
+        if (ownsChildren() && null != _childs)
+            size += ShallowSize.CHILD_LIST + ConfigTreeSizeEstimator.arraySize(_childs.size(), ConfigTreeSizeEstimator.REFERENCE)
+                    + _childs.size() * ShallowSize.CHILD;
+        return size;
+    } 
+
+    /**
+     * @return boolean - false while the attributes are shared with a snapshot or not parsed yet
+     */
+    boolean ownsAttributes() {
+        Features features = _features;
+        return null == features || (!features.cowAttributes && (null == features.lazy || features.lazy.isParsed()));
+    } 
+
+    /**
+     * @return boolean - false while the children are shared with a snapshot or not parsed yet
+     */
+    boolean ownsChildren() {
+        Features features = _features;
+        return null == features || (!features.cowChildren && (null == features.lazy || features.lazy.isParsed()));
+    } 
+
+    /**
+     * shallow sizes used by estimateOwnSize, computed on first use
+     */
+    private static final class ShallowSize {
+        static final long NODE = ConfigTreeSizeEstimator.shallowSize(ConfigTree.class);
+        static final long CHILD_LIST = ConfigTreeSizeEstimator.shallowSize(ArrayList.class);
+        static final long CHILD = ConfigTreeSizeEstimator.shallowSize(Child.class);
+    }
+
+    /**
+     * walk 'this' and its descendants in document order
+     * <br/>The walk allocates nothing; text segments are reported as they are stored,
+     * without being concatenated.  Unchanged parts of a copy-on-write clone are walked
+     * in the read only snapshot they share
+     *
+     * @param visitor ConfigTreeVisitor - receives the enter, text and leave callbacks
+     */
+    public void accept(ConfigTreeVisitor visitor) {
+        if (null == visitor)
+            throw new IllegalArgumentException();
+        if (visitor.enter(this)) {
+            int count = childCount();
+            for (int i = 0; i < count; i++) {
+                Object child = childAt(i);
+                if (child instanceof ConfigTree)
+                    ((ConfigTree) child).accept(visitor);
+                else
+                    visitor.text(this, (String) child);
+            }
+        }
+        visitor.leave(this);
+    } 
+
+    /**
+     * copy the attributes still shared with the copy-on-write source into 'this'
+     */
+    private void ownAttributes() {
+        ConfigTree source = sharedAttributes();
+        if (null == source)
+            return;
+        ConfigTreeAttributes attributes = new ConfigTreeAttributes(source.attributeCount());
+        for (String name : source.getAttributeNames())
+            attributes.put(name, source.getAttribute(name));
+        _attributes = attributes;
+        _features.cowAttributes = false;
+        releaseCowSource();
+    } 
+
+    /**
+     * replace the children still shared with the copy-on-write source by
+     * copy-on-write clones of them, owned by 'this'
+     * <br/>Called by changes and by the lookups that hand child nodes out, which must be
+     * nodes of 'this'; plain reads go to the source instead.  Readers may share a clone,
+     * so the new list is built aside and published by clearing the volatile cowChildren
+     */
+    private void ownChildren() {
+        if (null == sharedChildren())
+            return;
+        synchronized (this) {
+            ConfigTree source = sharedChildren();
+            if (null == source)
+                return;
+            int count = source.childCount();
+            List<Child> childs = new ArrayList<Child>(count);
+            for (int i = 0; i < count; i++) {
+                Object child = source.childAt(i);
+                if (child instanceof ConfigTree) {
+                    ConfigTree view = cowView((ConfigTree) child);
+                    view._dad = this;
+                    child = view;
+                }
+                new Child(child, childs);
+            }
+            _childs = childs;
+            _features.cowChildren = false;
+            releaseCowSource();
+        }
+    } 
+
+    private void releaseCowSource() {
+        if (!_features.cowAttributes && !_features.cowChildren)
+            _features.cowSource = null;
+    } 
+
+    /**
+     * parse the content of a lazy stub on its first touch
+     *
+     * @return ConfigTree - the frozen node whose attributes 'this' still shares, null if 'this' owns them
+     */
+    private ConfigTree sharedAttributes() {
+        Features features = _features;
+        if (null == features)
+            return null;
+        if (null != features.lazy)
+            materialise();
+        // source before flag: the source is only dropped after the flag is cleared
+        ConfigTree source = features.cowSource;
+        return features.cowAttributes ? source : null;
+    } 
+
+    /**
+     * parse the content of a lazy stub on its first touch
+     *
+     * @return ConfigTree - the frozen node whose children 'this' still shares, null if 'this' owns them
+     */
+    private ConfigTree sharedChildren() {
+        Features features = _features;
+        if (null == features)
+            return null;
+        if (null != features.lazy)
+            materialise();
+        ConfigTree source = features.cowSource;
+        return features.cowChildren ? source : null;
+    } 
+
+    private Features features() {
+        Features features = _features;
+        if (null == features)
+            _features = features = new Features();
+        return features;
+    } 
+
+    /**
+     * @return ConfigTree - a parentless node sharing the content of the frozen node provided
+     */
+    private static ConfigTree cowView(ConfigTree source) {
+        ConfigTree view = new ConfigTree(source.getName());
+        view._pureText = source.isPureText();
+        boolean attributes = source.attributeCount() > 0;
+        boolean children = source.childCount() > 0;
+        if (attributes || children) {
+            Features features = view.features();
+            features.cowAttributes = attributes;
+            features.cowChildren = children;
+            features.cowSource = source;
+        }
+        if (null == source.getParent())
+            view.features().snapshot = source;
+        return view;
+    } 
+
+    /**
+     * drop the cached snapshots of 'this' and its ancestors, called before any change
+     *
+     * @throws IllegalStateException - if 'this' was cut from its tree by the release of a lazy subtree
+     */
+    private void modified() {
+        ConfigTree node = this;
+        while (true) {
+            Features features = node._features;
+            if (null != features) {
+                features.snapshot = null;
+                if (null != features.lazy)
+                    features.lazy.pin(node);
+            }
+            if (null == node._dad)
+                break;
+            node = node._dad;
+        }
+        if (null != node._features && node._features.released)
+            throw new IllegalStateException("ConfigTree node '" + _name
+                    + "' belongs to a released lazy subtree and is read only, look it up again from the tree");
+    } 
+
+    /**
+     * turn a skeleton placeholder into the stub of a lazily parsed element
+     */
+    void makeLazy(String name, LazyConfigTreeSource.Subtree subtree, boolean hasElements) {
+        _name = name;
+        features().lazy = subtree;
+        if (hasElements)
+            _pureText = false;
+    }
+
+    LazyConfigTreeSource.Subtree lazySubtree() {
+        return (null == _features) ? null : _features.lazy;
+    }
+
+    /**
+     * parse the attributes and children of a lazy stub on its first touch
+     */
+    private void materialise() {
+        LazyConfigTreeSource.Subtree lazy = _features.lazy;
+        if (lazy.isParsed()) {
+            lazy.touch();
+            return;
+        }
+        ConfigTree content = lazy.parse(this);
+        _attributes = content._attributes;
+        if (null != content._childs) {
+            _childs = new ArrayList<Child>(content._childs.size());
+            for (Child child : content._childs)
+                if (child._obj instanceof ConfigTree)
+                    addChild((ConfigTree) child._obj);
+                else
+                    new Child((String) child._obj);
+        }
+        _pureText = content._pureText;
+    }
+
+    /**
+     * drop the parsed content of an unmodified lazy stub, it is parsed again on the next touch
+     * <br/>The child elements dropped are cut from 'this' and made read only, so that a
+     * change made through a reference kept to one of them fails instead of being lost
+     */
+    void releaseLazy() {
+        LazyConfigTreeSource.Subtree lazy = lazySubtree();
+        if (null == lazy || lazy.isPinned() || !lazy.isParsed())
+            return;
+        _attributes = null;
+        if (null != _childs)
+            for (Child child : _childs)
+                if (child._obj instanceof ConfigTree) {
+                    ((ConfigTree) child._obj)._dad = null;
+                    ((ConfigTree) child._obj).features().released = true;
+                }
+        _childs = null;
+        dropChildViews();
+        _features.typedValues = null;
+        lazy.released();
+    }
+
+    /**
+     * obtain a read only snapshot of 'this' and its descendants
+     * <br/>The snapshot stores its content in flat arrays, can be shared between threads
+     * without locking or cloning and throws UnsupportedOperationException on any change
+     * <br/>Freezing a snapshot returns the snapshot itself; the snapshot of a mutable
+     * tree is cached until something in the subtree changes
+     *
+     * @return ConfigTree - immutable copy of 'this', with no parent
+     */
+    public ConfigTree freeze() {
+        Features features = features();
+        if (null == features.snapshot)
+            features.snapshot = FrozenConfigTree.freeze(this);
+        return features.snapshot;
+    }
+
     @Override
     public Object clone() {
         return cloneObj();
@@ -405,38 +948,96 @@ public class ConfigTree implements Serializable, Cloneable {
      * @return ConfigTree - Deep copy of 'this'
      */
     public ConfigTree cloneObj() {
-        return cloneSubtree(null);
+        long start = System.nanoTime();
+        try {
+            return cloneSubtree(null, null);
+        }
+        finally {
+            ConfigTreeStatistics.record(ConfigTreeStatistics.CLONE_OBJ, start);
+        }
+    }
+
+    /**
+     * instantiate a new ConfigTree with the same topology and contents of 'this'
+     * <br/>In copy-on-write mode the clone shares a frozen snapshot of 'this' (taken once
+     * and reused until 'this' changes) and a node only copies its attributes or children
+     * from the snapshot when they are first changed, or for children, first handed out
+     * by a lookup such as getChildren().  Reading text, attributes or the xml form copies
+     * nothing, so unchanged parts of a clone cost no more than the snapshot they share
+     *
+     * @param copyOnWrite boolean - share content with a snapshot rather than deep copy
+     * @return ConfigTree - copy of 'this', with no parent
+     */
+    public ConfigTree cloneObj(boolean copyOnWrite) {
+        if (!copyOnWrite)
+            return cloneObj();
+        long start = System.nanoTime();
+        try {
+            return cowView(freeze());
+        }
+        finally {
+            ConfigTreeStatistics.record(ConfigTreeStatistics.CLONE_OBJ, start);
+        }
     }
 
     /**
+     * instantiate a deep copy of 'this' whose names, attribute values and whitespace
+     * text are pooled through the symbol table provided
+     * <br/>useful to compact trees that were built programmatically or by another parser
+     *
+     * @param symbols ConfigTreeSymbolTable - the pool to share strings through
      * @return ConfigTree - Deep copy of 'this'
      */
-    private ConfigTree cloneSubtree(ConfigTree dad) {
-        ConfigTree oRet = new ConfigTree(_name, dad);
-        if (null != _attributes)
-            for (Map.Entry<String, String> oAtt : _attributes.entrySet())
-                oRet.setAttribute(oAtt.getKey(), oAtt.getValue());
-        if (null != _childs)
-            for (Child oChild : _childs) {
-                ConfigTree tree = oChild.getTree();
-                if (null != tree)
-                    tree.cloneSubtree(oRet);
+    public ConfigTree cloneObj(ConfigTreeSymbolTable symbols) {
+        if (null == symbols)
+            throw new IllegalArgumentException();
+        long start = System.nanoTime();
+        try {
+            return cloneSubtree(null, symbols);
+        }
+        finally {
+            ConfigTreeStatistics.record(ConfigTreeStatistics.CLONE_OBJ, start);
+        }
+    }
+
+    /**
+     * @return ConfigTree - Deep copy of 'this'
+     */
+    private ConfigTree cloneSubtree(ConfigTree dad, ConfigTreeSymbolTable symbols) {
+        String name = (null == symbols) ? _name : symbols.name(_name);
+        ConfigTree oRet = (null == dad) ? new ConfigTree(name) : dad.appendChild(name);
+        if (attributeCount() > 0)
+            for (String attribute : getAttributeNames())
+                if (null == symbols)
+                    oRet.putAttribute(attribute, getAttribute(attribute));
                 else
-                    oRet.addTextChild(oChild._obj.toString());
-            }
+                    oRet.putAttribute(symbols.name(attribute), symbols.value(getAttribute(attribute)));
+        int count = childCount();
+        for (int i = 0; i < count; i++) {
+            Object child = childAt(i);
+            if (child instanceof ConfigTree)
+                ((ConfigTree) child).cloneSubtree(oRet, symbols);
+            else
+                oRet.appendText((null == symbols) ? child.toString() : symbols.text(child.toString()));
+        }
         return oRet;
     } 
 
     protected void copyFrom(ConfigTree other) {
         this.setName(other.getName());
-        this._pureText = other._pureText;
-
-        if (null != other._attributes)
-            for (Map.Entry<String, String> oneAtt : other._attributes.entrySet())
-                setAttribute(oneAtt.getKey(), oneAtt.getValue());
-        if (null != other._childs)
-            for (Child child : other._childs)
-                new Child(child);
+        this._pureText = other.isPureText();
+
+        if (other.attributeCount() > 0)
+            for (String name : other.getAttributeNames())
+                setAttribute(name, other.getAttribute(name));
+        int count = other.childCount();
+        for (int i = 0; i < count; i++) {
+            Object child = other.childAt(i);
+            if (child instanceof ConfigTree)
+                addChild(((ConfigTree) child).cloneObj());
+            else
+                addTextChild(child.toString());
+        }
 
     } 
 
@@ -472,13 +1073,17 @@ public class ConfigTree implements Serializable, Cloneable {
             throws UnsupportedEncodingException, SAXException {
         if (null == xml)
             throw new IllegalArgumentException("Xml source String is null");
+        long start = System.nanoTime();
         try {
-            return fromInputStream(new ByteArrayInputStream(xml.getBytes(encoding)));
+            return StaxConfigTreeBuilder.build(new ByteArrayInputStream(xml.getBytes(encoding)), new ConfigTreeSymbolTable());
         }
         catch (IOException e) {
             _logger.fatal("Received unexpected IOException: ", e);
             return null;
         }
+        finally {
+            ConfigTreeStatistics.record(ConfigTreeStatistics.FROM_XML, start);
+        }
     } 
 
     /**
@@ -492,6 +1097,84 @@ public class ConfigTree implements Serializable, Cloneable {
      */
     public static ConfigTree fromInputStream(InputStream input)
             throws SAXException, IOException {
+        return fromInputStream(input, new ConfigTreeSymbolTable());
+    }
+
+    /**
+     * obtain an instance of this class from an input stream, sharing names and common
+     * values through the symbol table provided
+     * <p/> pass the same table for several documents to share strings between their trees
+     *
+     * @param input   InputStream - where to parse from
+     * @param symbols ConfigTreeSymbolTable - the pool to share strings through
+     * @return ConfigTree - an object of this class
+     * @throws SAXException - if xml format is invalid
+     * @throws IOException  - if an input/output error occurs
+     */
+    public static ConfigTree fromInputStream(InputStream input, ConfigTreeSymbolTable symbols)
+            throws SAXException, IOException {
+        if (null == input || null == symbols)
+            throw new IllegalArgumentException();
+        long start = System.nanoTime();
+        try {
+            return StaxConfigTreeBuilder.build(input, symbols);
+        }
+        finally {
+            ConfigTreeStatistics.record(ConfigTreeStatistics.FROM_INPUT_STREAM, start);
+        }
+    }
+
+    /**
+     * obtain an instance of this class from a file whose elements at depth 2 (for
+     * jboss-esb.xml, each service and provider) are parsed on first touch
+     *
+     * @param file File - where to parse from
+     * @return ConfigTree - an object of this class
+     * @throws SAXException - if xml format is invalid
+     * @throws IOException  - if an input/output error occurs
+     * @see #fromFileLazy(File, int)
+     */
+    public static ConfigTree fromFileLazy(File file)
+            throws SAXException, IOException {
+        return fromFileLazy(file, DEFAULT_LAZY_DEPTH);
+    }
+
+    /**
+     * obtain an instance of this class from a file whose elements at the depth provided
+     * are only parsed when their attributes or children are first touched
+     * <p/> the file is memory mapped and scanned once for the byte range of each of those
+     * elements; their parsed content is released again under memory pressure unless
+     * something in it was changed, and parsed again on the next touch.  Nodes kept from
+     * a released element are no longer part of the tree and throw IllegalStateException
+     * on any change; look them up again from the tree instead.  The file must
+     * not change while the tree is in use.  Documents with a DTD or an encoding that is
+     * not ASCII compatible are parsed in full
+     *
+     * @param file      File - where to parse from
+     * @param lazyDepth int - depth of the lazily parsed elements, the root element being at depth 0
+     * @return ConfigTree - an object of this class
+     * @throws SAXException - if xml format is invalid; errors inside a lazy element are only
+     *                      reported, as IllegalStateException, when the element is first touched
+     * @throws IOException  - if an input/output error occurs
+     */
+    public static ConfigTree fromFileLazy(File file, int lazyDepth)
+            throws SAXException, IOException {
+        if (null == file)
+            throw new IllegalArgumentException();
+        return LazyConfigTreeSource.load(file, lazyDepth);
+    }
+
+    /**
+     * obtain an instance of this class by building a DOM for the input stream first
+     * <p/> produces the same tree as fromInputStream(), which streams the document directly
+     *
+     * @param input InputStream - where to parse from
+     * @return ConfigTree - an object of this class
+     * @throws SAXException - if xml format is invalid
+     * @throws IOException  - if an input/output error occurs
+     */
+    public static ConfigTree fromInputStreamDom(InputStream input)
+            throws SAXException, IOException {
         if (null == input)
             throw new IllegalArgumentException();
         DocumentBuilder builder = null;
@@ -510,12 +1193,24 @@ public class ConfigTree implements Serializable, Cloneable {
     } 
 
     public static ConfigTree fromElement(Element elem) {
-        ConfigTree tree = new ConfigTree(elem.getNodeName());
+        return fromElement(elem, new ConfigTreeSymbolTable());
+    }
+
+    /**
+     * obtain an instance of this class from a DOM element, sharing names and common
+     * values through the symbol table provided
+     *
+     * @param elem    Element - the root of the tree
+     * @param symbols ConfigTreeSymbolTable - the pool to share strings through
+     * @return ConfigTree - an object of this class
+     */
+    public static ConfigTree fromElement(Element elem, ConfigTreeSymbolTable symbols) {
+        ConfigTree tree = new ConfigTree(symbols.name(elem.getNodeName()));
         NamedNodeMap NM = elem.getAttributes();
         if (null != NM)
             for (int i1 = 0; i1 < NM.getLength(); i1++) {
                 Node node = NM.item(i1);
-                tree.setAttribute(node.getNodeName(), node.getNodeValue());
+                tree.setAttribute(symbols.name(node.getNodeName()), symbols.value(node.getNodeValue()));
             }
         NodeList NL = elem.getChildNodes();
         if (null != NL)
@@ -523,10 +1218,10 @@ public class ConfigTree implements Serializable, Cloneable {
                 Node node = NL.item(i1);
                 switch (node.getNodeType()) {
                     case Node.ELEMENT_NODE:
-                        tree.addChild(ConfigTree.fromElement((Element) node));
+                        tree.addChild(ConfigTree.fromElement((Element) node, symbols));
                         break;
                     case Node.TEXT_NODE:
-                        tree.addTextChild(node.getNodeValue());
+                        tree.addTextChild(symbols.text(node.getNodeValue()));
                         break;
                 }
             }
@@ -534,22 +1229,6 @@ public class ConfigTree implements Serializable, Cloneable {
         return tree;
     } 
 
-    private Element toElement(Document doc) {
-        Element elem = doc.createElement(_name);
-        if (null != _attributes)
-            for (Map.Entry<String, String> oAtt : _attributes.entrySet())
-                elem.setAttribute(oAtt.getKey(), oAtt.getValue());
-        if (null != _childs)
-            for (Child child : _childs) {
-                ConfigTree tree = child.getTree();
-                if (null != tree)
-                    elem.appendChild(tree.toElement(doc));
-                else
-                    elem.appendChild(doc.createTextNode(child._obj.toString()));
-            }
-        return elem;
-    } 
-
     /**
      * Equivalent to a call to toXml()
      *
@@ -588,43 +1267,75 @@ public class ConfigTree implements Serializable, Cloneable {
      *         using encoding specified in arg0
      */
     public String toXml(String encoding) {
-        Transformer transf = null;
+        final Charset charset;
         try {
-            transf = TransformerFactory.newInstance().newTransformer();
+            charset = Charset.forName(encoding);
         }
-        catch (TransformerConfigurationException e1) {
-            _logger.error("Cannot obtain transformer to render XML output", e1);
+        catch (IllegalArgumentException e1) {
+            _logger.error("Cannot render XML output with encoding " + encoding, e1);
             return null;
         }
-        transf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        transf.setOutputProperty(OutputKeys.INDENT, "no");
-        transf.setOutputProperty(OutputKeys.ENCODING, encoding);
-
-        DocumentBuilder builder = null;
+        long start = System.nanoTime();
+        StringWriter oWriter = new StringWriter(256);
         try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            new ConfigTreeXmlWriter(oWriter, charset).write(this);
         }
-        catch (ParserConfigurationException e2) {
-            _logger.error("Problems with default Parser Configuration", e2);
+        catch (IOException e2) {
+            //  This can't happen
+            _logger.fatal("Received unexpected IOException: ", e2);
             return null;
         }
-        Document oDoc = builder.newDocument();
-        oDoc.appendChild(toElement(oDoc));
-        oDoc.normalize();
-        DOMSource src = new DOMSource(oDoc);
+        finally {
+            ConfigTreeStatistics.record(ConfigTreeStatistics.TO_XML, start);
+        }
+        return oWriter.toString();
+    } 
 
-        ByteArrayOutputStream oStrm = new ByteArrayOutputStream(5000);
-        StreamResult res = new StreamResult(oStrm);
+    /**
+     * stream the 'standard' xml representation of 'this' to a Writer
+     * <br/>the writer is flushed but not closed
+     *
+     * @param writer Writer - where to write to
+     * @throws IOException - if an input/output error occurs
+     */
+    public void writeXml(Writer writer) throws IOException {
+        if (null == writer)
+            throw new IllegalArgumentException();
+        new ConfigTreeXmlWriter(writer, null).write(this);
+        writer.flush();
+    } 
 
-        try {
-            transf.transform(src, res);
-        }
-        catch (TransformerException e3) {
-            _logger.error("Problems with XML transformation", e3);
-            return null;
-        }
+    /**
+     * stream the 'standard' xml representation of 'this' to an OutputStream
+     * <br/>the stream is flushed but not closed
+     *
+     * @param output   OutputStream - where to write to
+     * @param encoding String - the encoding of the bytes written
+     * @throws IOException - if an input/output error occurs
+     */
+    public void writeXml(OutputStream output, String encoding) throws IOException {
+        if (null == output)
+            throw new IllegalArgumentException();
+        Charset charset = Charset.forName(encoding);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, charset));
+        new ConfigTreeXmlWriter(writer, charset).write(this);
+        writer.flush();
+    } 
 
-        return oStrm.toString();
+    /**
+     * stream the 'standard' xml representation of 'this' to a channel
+     *
+     * @param channel  WritableByteChannel - where to write to
+     * @param encoding String - the encoding of the bytes written
+     * @throws IOException - if an input/output error occurs
+     */
+    public void writeXml(WritableByteChannel channel, String encoding) throws IOException {
+        if (null == channel)
+            throw new IllegalArgumentException();
+        Charset charset = Charset.forName(encoding);
+        Writer writer = Channels.newWriter(channel, charset.newEncoder(), 8192);
+        new ConfigTreeXmlWriter(writer, charset).write(this);
+        writer.flush();
     } 
 
     /**
@@ -634,6 +1345,382 @@ public class ConfigTree implements Serializable, Cloneable {
         return _pureText;
     }
 
+    /**
+     * flag 'this' as holding ConfigTree children, even when none are currently present
+     */
+    void markMixed() {
+        _pureText = false;
+    }
+
+    /**
+     * Serialize 'this' and its descendants through the compact binary encoding
+     * of ConfigTreeSerialForm rather than default serialization.
+     * <br/>The parent of 'this' is not serialized
+     *
+     * @return Object - the serialized form
+     * @throws ObjectStreamException - never thrown
+     */
+    protected Object writeReplace() throws ObjectStreamException {
+        return new ConfigTreeSerialForm(this);
+    }
+
+    /**
+     * Fluent builder for trees assembled in code, such as response configurations and
+     * message templates.
+     * <br/>Elements are opened with {@link #start(String)} and closed with {@link #end()};
+     * attributes and text go to the element currently open.  Content is appended to
+     * growable arrays, in amortised constant time, and the nodes are only created by
+     * {@link #build()} or {@link #buildFrozen()}, in a single pass with their storage
+     * sized exactly, without the per node parent bookkeeping of new ConfigTree(name, dad).
+     * <br/>A builder may be built several times, every call returns an independent tree,
+     * so a template can be recorded once and instantiated per request.  A builder is
+     * not thread safe
+     */
+    public static final class Builder {
+        private final ConfigTreeSymbolTable _symbols;
+
+        private final Node _root;
+
+        private Node[] _open = new Node[8];
+
+        private int _depth;
+
+        /**
+         * @param name String - the name of the root element
+         */
+        public Builder(String name) {
+            this(name, null);
+        }
+
+        /**
+         * @param name    String - the name of the root element
+         * @param symbols ConfigTreeSymbolTable - pool for the names, values and whitespace, may be null
+         */
+        public Builder(String name, ConfigTreeSymbolTable symbols) {
+            if (null == name)
+                throw new IllegalArgumentException();
+            _symbols = symbols;
+            _root = new Node(name(name), 0, 0);
+            _open[0] = _root;
+        }
+
+        /**
+         * open a child element of the current element, it becomes the current element
+         *
+         * @param name String - the name of the child element
+         * @return Builder - this builder
+         */
+        public Builder start(String name) {
+            return start(name, 0, 0);
+        }
+
+        /**
+         * open a child element, with storage sized for the content expected
+         *
+         * @param name       String - the name of the child element
+         * @param attributes int - the number of attributes expected
+         * @param children   int - the number of element and text children expected
+         * @return Builder - this builder
+         */
+        public Builder start(String name, int attributes, int children) {
+            if (null == name || attributes < 0 || children < 0)
+                throw new IllegalArgumentException();
+            Node child = new Node(name(name), attributes, children);
+            current().add(child);
+            current()._pureText = false;
+            if (++_depth == _open.length)
+                _open = Arrays.copyOf(_open, _depth * 2);
+            _open[_depth] = child;
+            return this;
+        }
+
+        /**
+         * close the current element, its parent becomes the current element again
+         *
+         * @return Builder - this builder
+         * @throws IllegalStateException - if only the root element is open
+         */
+        public Builder end() {
+            if (0 == _depth)
+                throw new IllegalStateException("The root element <" + _root._name + "> cannot be closed");
+            _open[_depth--] = null;
+            return this;
+        }
+
+        /**
+         * assign an attribute of the current element, replacing any previous value
+         *
+         * @param name  String - the name of the attribute
+         * @param value String - the value, null leaves the attribute unset
+         * @return Builder - this builder
+         */
+        public Builder attribute(String name, String value) {
+            if (null == name)
+                throw new IllegalArgumentException();
+            if (null != value)
+                current().attribute(name(name), (null == _symbols) ? value : _symbols.value(value));
+            return this;
+        }
+
+        /**
+         * append a text segment to the current element
+         *
+         * @param text String - the text
+         * @return Builder - this builder
+         */
+        public Builder text(String text) {
+            if (null == text)
+                throw new IllegalArgumentException();
+            current().add((null == _symbols) ? text : _symbols.text(text));
+            return this;
+        }
+
+        /**
+         * append a child element holding only text, the current element does not change
+         *
+         * @param name String - the name of the child element
+         * @param text String - its text
+         * @return Builder - this builder
+         */
+        public Builder textChild(String name, String text) {
+            return start(name, 0, 1).text(text).end();
+        }
+
+        /**
+         * create the mutable tree recorded so far, elements still open are included
+         *
+         * @return ConfigTree - the root of a new tree
+         */
+        public ConfigTree build() {
+            return _root.build();
+        }
+
+        /**
+         * create a read only snapshot of the tree recorded so far, as returned by
+         * {@link ConfigTree#freeze()}, without building the mutable tree first
+         *
+         * @return ConfigTree - the root of a new snapshot
+         */
+        public ConfigTree buildFrozen() {
+            return FrozenConfigTree.freeze(_root);
+        }
+
+        private Node current() {
+            return _open[_depth];
+        }
+
+        private String name(String name) {
+            return (null == _symbols) ? name : _symbols.name(name);
+        }
+
+        /**
+         * element recorded by a builder
+         */
+        static final class Node {
+            final String _name;
+
+            /**
+             * alternating attribute names and values
+             */
+            String[] _attributes;
+
+            int _attributeLength;
+
+            /**
+             * Node and String children, in document order
+             */
+            Object[] _children;
+
+            int _childCount;
+
+            boolean _pureText = true;
+
+            private Node(String name, int attributes, int children) {
+                _name = name;
+                _attributes = (0 == attributes) ? null : new String[attributes * 2];
+                _children = (0 == children) ? null : new Object[children];
+            }
+
+            private void attribute(String name, String value) {
+                for (int i = 0; i < _attributeLength; i += 2)
+                    if (_attributes[i].equals(name)) {
+                        _attributes[i + 1] = value;
+                        return;
+                    }
+                if (null == _attributes)
+                    _attributes = new String[4];
+                else if (_attributeLength == _attributes.length)
+                    _attributes = Arrays.copyOf(_attributes, _attributeLength * 2);
+                _attributes[_attributeLength++] = name;
+                _attributes[_attributeLength++] = value;
+            }
+
+            private void add(Object child) {
+                if (null == _children)
+                    _children = new Object[4];
+                else if (_childCount == _children.length)
+                    _children = Arrays.copyOf(_children, _childCount * 2);
+                _children[_childCount++] = child;
+            }
+
+            private ConfigTree build() {
+                ConfigTree tree = new ConfigTree(_name);
+                tree._pureText = _pureText;
+                if (_attributeLength > 0) {
+                    tree._attributes = new ConfigTreeAttributes(_attributeLength >> 1);
+                    for (int i = 0; i < _attributeLength; i += 2)
+                        tree._attributes.append(_attributes[i], _attributes[i + 1]);
+                }
+                if (_childCount > 0) {
+                    tree._childs = new ArrayList<Child>(_childCount);
+                    for (int i = 0; i < _childCount; i++)
+                        if (_children[i] instanceof Node)
+                            tree.addChild(((Node) _children[i]).build());
+                        else
+                            tree.new Child((String) _children[i]);
+                }
+                return tree;
+            }
+        }
+    }
+
+    /**
+     * Immutable parse result of one attribute value, so that snapshots can share entries between threads.
+     */
+    static final class TypedValue {
+        static final int INT = 0;
+        static final int LONG = 1;
+        static final int FLOAT = 2;
+        static final int BOOLEAN = 3;
+        static final int DURATION = 4;
+        static final int ENUM = 5;
+
+        final String _raw;
+        final int _kind;
+        final Object _qualifier;
+        final boolean _valid;
+        final long _long;
+        final float _float;
+        final Object _object;
+
+        private TypedValue(String raw, int kind, Object qualifier, boolean valid, long longValue, float floatValue, Object object) {
+            _raw = raw;
+            _kind = kind;
+            _qualifier = qualifier;
+            _valid = valid;
+            _long = longValue;
+            _float = floatValue;
+            _object = object;
+        }
+
+        boolean matches(String raw, int kind, Object qualifier) {
+            return _kind == kind && _qualifier == qualifier && _raw.equals(raw);
+        }
+
+        static TypedValue parse(String raw, int kind, Object qualifier) {
+            String value = raw.trim();
+            try {
+                switch (kind) {
+                    case INT:
+                        return new TypedValue(raw, kind, qualifier, true, Integer.parseInt(value), 0, null);
+                    case LONG:
+                        return new TypedValue(raw, kind, qualifier, true, Long.parseLong(value), 0, null);
+                    case FLOAT:
+                        return new TypedValue(raw, kind, qualifier, true, 0, Float.parseFloat(value), null);
+                    case BOOLEAN:
+                        return new TypedValue(raw, kind, qualifier, true, Boolean.parseBoolean(value) ? 1 : 0, 0, null);
+                    case DURATION: {
+                        Duration duration = (value.length() > 0 && Character.toUpperCase(value.charAt(0)) == 'P')
+                                ? Duration.parse(value)
+                                : Duration.ofNanos(((TimeUnit) qualifier).toNanos(Long.parseLong(value)));
+                        return new TypedValue(raw, kind, qualifier, true, 0, 0, duration);
+                    }
+                    default:
+                        for (Object constant : ((Class<?>) qualifier).getEnumConstants())
+                            if (((Enum<?>) constant).name().equalsIgnoreCase(value))
+                                return new TypedValue(raw, kind, qualifier, true, 0, 0, constant);
+                        break;
+                }
+            }
+            catch (RuntimeException e) {
+                // NumberFormatException or DateTimeParseException, reported by the caller
+            }
+            return new TypedValue(raw, kind, qualifier, false, 0, 0, null);
+        }
+
+        static String describe(int kind, Object qualifier) {
+            switch (kind) {
+                case INT:
+                    return "an integer value";
+                case LONG:
+                    return "an long/integer value";
+                case FLOAT:
+                    return "an float value";
+                case BOOLEAN:
+                    return "an boolean value";
+                case DURATION:
+                    return "an ISO-8601 duration or a number of " + qualifier;
+                default:
+                    return "one of " + java.util.Arrays.toString(((Class<?>) qualifier).getEnumConstants());
+            }
+        }
+    }
+
+    /**
+     * Optional state of a node, see _features.  No field has an initialiser, so a reader
+     * racing with the allocation may at worst see the defaults of another instance.  The
+     * caches filled on read are volatile and only ever assigned fully built, never changed
+     * in place, so a reader sees either null or a complete value; an entry lost to the race
+     * is simply built again.
+     */
+    private static final class Features {
+        /**
+         * ConfigTree children grouped by name, built on the first lookup and dropped on any change to _childs.
+         * <br/>Assigned once built and never changed afterwards.
+         */
+        volatile Map<String, ConfigTreeChildList> childIndex;
+
+        /**
+         * cached view of the element children, dropped with childIndex
+         */
+        volatile ConfigTreeChildList childList;
+
+        /**
+         * Parsed attribute values as name, TypedValue pairs.  Never changed in place: a new array
+         * is published on every change, so concurrent readers of a shared node need no locking.
+         * <br/>Entries are dropped by setAttribute.
+         */
+        volatile Object[] typedValues;
+
+        /**
+         * Frozen node whose attributes and/or children a copy-on-write clone still shares.
+         * <br/>Released once the node holds its own copy of both.  Reads go to it while the
+         * flags are set; a flag is only cleared once the node's own copy is in place.
+         */
+        volatile ConfigTree cowSource;
+
+        volatile boolean cowAttributes;
+
+        volatile boolean cowChildren;
+
+        /**
+         * Frozen snapshot of the current content of the node, dropped when anything in the subtree changes.
+         */
+        ConfigTree snapshot;
+
+        /**
+         * Byte range of a lazily loaded element whose attributes and children are parsed on first touch.
+         * <br/>See fromFileLazy()
+         */
+        LazyConfigTreeSource.Subtree lazy;
+
+        /**
+         * Set on the top nodes of a lazy subtree released under memory pressure: they are cut
+         * from the tree, and any change to them or their descendants is rejected.
+         */
+        boolean released;
+    }
+
     private class Child {
         Object _obj;
 
@@ -654,24 +1741,22 @@ public class ConfigTree implements Serializable, Cloneable {
             addToDad(obj);
         }
 
-        private Child(Child other) {
-            if (other._obj instanceof ConfigTree) {
-                addToDad(((ConfigTree) other._obj).cloneObj());
-                _pureText = false;
-                return;
-            }
-            if (other._obj instanceof String) {
-                addToDad((String) other._obj);
-                return;
-            }
-
+        /**
+         * a child appended to a list being built aside, see ownChildren()
+         */
+        private Child(Object obj, List<Child> list) {
+            _obj = obj;
+            list.add(this);
         }
 
         private void addToDad(Object obj) {
+            ownChildren();
             if (null == _childs)
                 _childs = new ArrayList<Child>();
             _obj = obj;
             _childs.add(this);
+            if (obj instanceof ConfigTree)
+                dropChildViews();
         }
 
     }
@@ -0,0 +1,223 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Attribute store of a mutable {@link ConfigTree} node.
+ * <p/>
+ * Names and values are kept in two parallel arrays, in insertion order, and small
+ * stores are searched linearly; names are usually pooled symbols, so most probes
+ * succeed on the identity check.  Once a store grows past {@link #INDEX_THRESHOLD}
+ * attributes an open addressing hash table of slot numbers, probed linearly, is
+ * added, and dropped again when it shrinks back.  Updating an existing attribute
+ * replaces its value in place.
+ * <p/>
+ * Iteration order is the order in which the attributes were first set.
+ */
+final class ConfigTreeAttributes {
+
+    /**
+     * Stores holding more attributes than this are indexed.
+     */
+    static final int INDEX_THRESHOLD = 8;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private String[] _names;
+
+    private String[] _values;
+
+    private int _size;
+
+    /**
+     * Hash table of slot + 1 by name, 0 marking a free entry; only when _size > INDEX_THRESHOLD.
+     * Its length is a power of two at least twice _size.
+     */
+    private int[] _index;
+
+    ConfigTreeAttributes() {
+        this(INITIAL_CAPACITY);
+    }
+
+    ConfigTreeAttributes(final int capacity) {
+        _names = new String[Math.max(1, capacity)];
+        _values = new String[_names.length];
+    }
+
+    int size() {
+        return _size;
+    }
+
+    String get(final String name) {
+        final int slot = slotOf(name);
+        return (slot < 0) ? null : _values[slot];
+    }
+
+    /**
+     * @return String - the previous value, null if there was none
+     */
+    String put(final String name, final String value) {
+        final int slot = slotOf(name);
+        if (slot >= 0) {
+            final String oldValue = _values[slot];
+            _values[slot] = value;
+            return oldValue;
+        }
+        append(name, value);
+        return null;
+    }
+
+    /**
+     * Add an attribute known not to be present yet, without searching for it.
+     */
+    void append(final String name, final String value) {
+        if (_size == _names.length) {
+            _names = Arrays.copyOf(_names, _size * 2);
+            _values = Arrays.copyOf(_values, _size * 2);
+        }
+        _names[_size] = name;
+        _values[_size] = value;
+        _size++;
+        if (null != _index && _size * 2 <= _index.length) {
+            insert(_index, name, _size);
+        } else if (_size > INDEX_THRESHOLD) {
+            buildIndex();
+        }
+    }
+
+    /**
+     * @return String - the removed value, null if there was none
+     */
+    String remove(final String name) {
+        final int slot = slotOf(name);
+        if (slot < 0) {
+            return null;
+        }
+        final String oldValue = _values[slot];
+        final int moved = _size - slot - 1;
+        System.arraycopy(_names, slot + 1, _names, slot, moved);
+        System.arraycopy(_values, slot + 1, _values, slot, moved);
+        _size--;
+        _names[_size] = null;
+        _values[_size] = null;
+        if (null != _index) {
+            if (_size > INDEX_THRESHOLD / 2) {
+                buildIndex();
+            } else {
+                _index = null;
+            }
+        }
+        return oldValue;
+    }
+
+    String nameAt(final int slot) {
+        return _names[slot];
+    }
+
+    String valueAt(final int slot) {
+        return _values[slot];
+    }
+
+    private int slotOf(final String name) {
+        if (null != _index) {
+            final int mask = _index.length - 1;
+            for (int i = name.hashCode() & mask; 0 != _index[i]; i = (i + 1) & mask) {
+                final int slot = _index[i] - 1;
+                if (_names[slot] == name || _names[slot].equals(name)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+        for (int i = 0; i < _size; i++) {
+            if (_names[i] == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < _size; i++) {
+            if (_names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void buildIndex() {
+        final int[] index = new int[Integer.highestOneBit(_size * 4 - 1)];
+        for (int i = 0; i < _size; i++) {
+            insert(index, _names[i], i + 1);
+        }
+        _index = index;
+    }
+
+    private static void insert(final int[] index, final String name, final int slotPlusOne) {
+        final int mask = index.length - 1;
+        int i = name.hashCode() & mask;
+        while (0 != index[i]) {
+            i = (i + 1) & mask;
+        }
+        index[i] = slotPlusOne;
+    }
+
+    /**
+     * @return long - estimated heap of the store and its arrays, not of the strings
+     */
+    long estimateSize() {
+        long size = ShallowSize.STORE
+            + 2 * ConfigTreeSizeEstimator.arraySize(_names.length, ConfigTreeSizeEstimator.REFERENCE);
+        if (null != _index) {
+            size += ConfigTreeSizeEstimator.arraySize(_index.length, 4);
+        }
+        return size;
+    }
+
+    /**
+     * Computed on first use.
+     */
+    private static final class ShallowSize {
+        static final long STORE = ConfigTreeSizeEstimator.shallowSize(ConfigTreeAttributes.class);
+    }
+
+    /**
+     * @return Set - read only view of the names, in insertion order
+     */
+    Set<String> names() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int _next;
+
+                    public boolean hasNext() {
+                        return _next < _size;
+                    }
+
+                    public String next() {
+                        if (_next >= _size) {
+                            throw new NoSuchElementException();
+                        }
+                        return _names[_next++];
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException("Use ConfigTree.setAttribute(name, null)");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return _size;
+            }
+
+            @Override
+            public boolean contains(final Object o) {
+                return (o instanceof String) && slotOf((String) o) >= 0;
+            }
+        };
+    }
+}
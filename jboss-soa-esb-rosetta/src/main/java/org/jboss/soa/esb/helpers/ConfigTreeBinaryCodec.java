@@ -0,0 +1,269 @@
+package org.jboss.soa.esb.helpers;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a {@link ConfigTree}.
+ * <p/>
+ * Layout, all counts and indexes being unsigned varints:
+ * <pre>
+ *   byte    version
+ *   byte    flags            (FLAG_FROZEN)
+ *   varint  string count, then for each string: varint byte length, UTF-8 bytes
+ *   node    root
+ *
+ *   node  := varint name index
+ *            varint (attribute count &lt;&lt; 1) | mixed, where mixed is set when the
+ *                   node is not pure text
+ *            attribute count * (varint name index, varint value index)
+ *            varint child count
+ *            child count * child
+ *   child := varint 0 followed by a node, or varint (text index + 1)
+ * </pre>
+ * Every distinct name, value and text is written once in the string table. The
+ * parent of the encoded node is not written.
+ * <p/>
+ * Encoded data may come from another JVM, so decoding never trusts it: counts and
+ * lengths are checked against {@link #MAX_COUNT} and {@link #MAX_STRING_LENGTH}, storage
+ * only grows as data is actually read, so a bogus count fails with an EOFException
+ * instead of allocating, and nesting deeper than {@link #MAX_DEPTH} is rejected.
+ */
+final class ConfigTreeBinaryCodec {
+
+    static final int VERSION = 1;
+
+    static final int FLAG_FROZEN = 0x01;
+
+    /**
+     * Largest number of strings, attributes or children accepted.
+     */
+    static final int MAX_COUNT = 1 << 24;
+
+    /**
+     * Largest encoded string accepted, in bytes.
+     */
+    static final int MAX_STRING_LENGTH = 1 << 24;
+
+    /**
+     * Deepest element nesting accepted.
+     */
+    static final int MAX_DEPTH = 1024;
+
+    /**
+     * Strings and buffers are grown by at most this much ahead of the data read.
+     */
+    private static final int CHUNK = 8192;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ConfigTreeBinaryCodec() {
+    }
+
+    /**
+     * Encode a tree.
+     *
+     * @param output DataOutput - where to write to
+     * @param tree   ConfigTree - the root of the encoded tree
+     * @param flags  int - flags stored in the header
+     * @throws IOException - if an input/output error occurs
+     */
+    static void write(final DataOutput output, final ConfigTree tree, final int flags) throws IOException {
+        final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        final List<String> strings = new ArrayList<String>();
+        collect(tree, indexes, strings);
+
+        output.writeByte(VERSION);
+        output.writeByte(flags);
+        writeVarint(output, strings.size());
+        for (String value : strings) {
+            final byte[] bytes = value.getBytes(UTF8);
+            writeVarint(output, bytes.length);
+            output.write(bytes);
+        }
+        writeNode(output, tree, indexes);
+    }
+
+    private static void collect(final ConfigTree tree, final Map<String, Integer> indexes, final List<String> strings) {
+        intern(tree.getName(), indexes, strings);
+        if (tree.attributeCount() > 0) {
+            for (String name : tree.getAttributeNames()) {
+                intern(name, indexes, strings);
+                intern(tree.getAttribute(name), indexes, strings);
+            }
+        }
+        final int childCount = tree.childCount();
+        for (int i = 0; i < childCount; i++) {
+            final Object child = tree.childAt(i);
+            if (child instanceof ConfigTree) {
+                collect((ConfigTree) child, indexes, strings);
+            } else {
+                intern(child.toString(), indexes, strings);
+            }
+        }
+    }
+
+    private static void intern(final String value, final Map<String, Integer> indexes, final List<String> strings) {
+        if (!indexes.containsKey(value)) {
+            indexes.put(value, Integer.valueOf(strings.size()));
+            strings.add(value);
+        }
+    }
+
+    private static void writeNode(final DataOutput output, final ConfigTree tree, final Map<String, Integer> indexes) throws IOException {
+        writeVarint(output, indexes.get(tree.getName()).intValue());
+        final int attributeCount = tree.attributeCount();
+        writeVarint(output, (attributeCount << 1) | (tree.isPureText() ? 0 : 1));
+        if (attributeCount > 0) {
+            for (String name : tree.getAttributeNames()) {
+                writeVarint(output, indexes.get(name).intValue());
+                writeVarint(output, indexes.get(tree.getAttribute(name)).intValue());
+            }
+        }
+        final int childCount = tree.childCount();
+        writeVarint(output, childCount);
+        for (int i = 0; i < childCount; i++) {
+            final Object child = tree.childAt(i);
+            if (child instanceof ConfigTree) {
+                writeVarint(output, 0);
+                writeNode(output, (ConfigTree) child, indexes);
+            } else {
+                writeVarint(output, indexes.get(child.toString()).intValue() + 1);
+            }
+        }
+    }
+
+    /**
+     * Decode a tree written by {@link #write(DataOutput, ConfigTree, int)}.
+     *
+     * @param input   DataInput - where to read from
+     * @param symbols ConfigTreeSymbolTable - pool for the strings read, may be null
+     * @return Encoded - the tree and the header flags
+     * @throws IOException - if an input/output error occurs or the data is not a valid encoding
+     */
+    static Encoded read(final DataInput input, final ConfigTreeSymbolTable symbols) throws IOException {
+        final int version = input.readUnsignedByte();
+        if (VERSION != version) {
+            throw new StreamCorruptedException("Unsupported ConfigTree encoding version " + version);
+        }
+        final int flags = input.readUnsignedByte();
+        final int count = readCount(input, MAX_COUNT, "string count");
+        String[] strings = new String[Math.min(count, CHUNK)];
+        byte[] buffer = new byte[64];
+        for (int i = 0; i < count; i++) {
+            final int length = readCount(input, MAX_STRING_LENGTH, "string length");
+            int read = 0;
+            while (read < length) {
+                final int step = Math.min(CHUNK, length - read);
+                if (read + step > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.min(length, Math.max(read + step, buffer.length * 2)));
+                }
+                input.readFully(buffer, read, step);
+                read += step;
+            }
+            if (i == strings.length) {
+                strings = Arrays.copyOf(strings, Math.min(count, strings.length + Math.max(CHUNK, strings.length)));
+            }
+            strings[i] = new String(buffer, 0, length, UTF8);
+        }
+        return new Encoded(readNode(input, strings, null, symbols, 0), flags);
+    }
+
+    private static ConfigTree readNode(final DataInput input, final String[] strings, final ConfigTree dad,
+            final ConfigTreeSymbolTable symbols, final int depth) throws IOException {
+        if (depth >= MAX_DEPTH) {
+            throw new StreamCorruptedException("ConfigTree nested deeper than " + MAX_DEPTH);
+        }
+        final String nodeName = name(string(strings, readVarint(input)), symbols);
+        final ConfigTree tree = (null == dad) ? new ConfigTree(nodeName) : dad.appendChild(nodeName);
+        final int header = readVarint(input);
+        final int attributeCount = header >>> 1;
+        if (attributeCount > MAX_COUNT) {
+            throw new StreamCorruptedException("Invalid attribute count " + attributeCount);
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            final String name = name(string(strings, readVarint(input)), symbols);
+            final String value = string(strings, readVarint(input));
+            tree.putAttribute(name, (null == symbols) ? value : symbols.value(value));
+        }
+        final int childCount = readCount(input, MAX_COUNT, "child count");
+        for (int i = 0; i < childCount; i++) {
+            final int child = readVarint(input);
+            if (0 == child) {
+                readNode(input, strings, tree, symbols, depth + 1);
+            } else {
+                final String text = string(strings, child - 1);
+                tree.appendText((null == symbols) ? text : symbols.text(text));
+            }
+        }
+        if (0 != (header & 1)) {
+            tree.markMixed();
+        }
+        return tree;
+    }
+
+    private static String name(final String name, final ConfigTreeSymbolTable symbols) {
+        return (null == symbols) ? name : symbols.name(name);
+    }
+
+    private static int readCount(final DataInput input, final int max, final String what) throws IOException {
+        final int count = readVarint(input);
+        if (count < 0 || count > max) {
+            throw new StreamCorruptedException("Invalid " + what + " " + count);
+        }
+        return count;
+    }
+
+    private static String string(final String[] strings, final int index) throws IOException {
+        if (index < 0 || index >= strings.length || null == strings[index]) {
+            throw new StreamCorruptedException("Invalid string index " + index);
+        }
+        return strings[index];
+    }
+
+    static void writeVarint(final DataOutput output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    static int readVarint(final DataInput input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = input.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    /**
+     * A decoded tree and the flags it was written with.
+     */
+    static final class Encoded {
+        final ConfigTree tree;
+
+        final int flags;
+
+        Encoded(final ConfigTree tree, final int flags) {
+            this.tree = tree;
+            this.flags = flags;
+        }
+
+        ConfigTree resolve() {
+            return (0 != (flags & FLAG_FROZEN)) ? tree.freeze() : tree;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.jboss.soa.esb.helpers;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.soa.esb.ConfigurationException;
+
+/**
+ * Fills the {@link ConfigProperty} fields of an object from the attributes of a {@link ConfigTree}.
+ * <p/>
+ * The annotated fields of a class, and of its superclasses, are looked up once and a
+ * {@link MethodHandle} setter is created for each of them; the binder is then cached
+ * per class, so binding an instance only costs the attribute lookups, the conversions
+ * and the field writes and is cheap enough to repeat on every reload.
+ * <p/>
+ * All attributes are converted and validated before any field is written.  The
+ * problems found are reported together in a single ConfigurationException and the
+ * target is then left unchanged.
+ * <pre>
+ * private static final ConfigTreeBinder&lt;MyAction&gt; BINDER = ConfigTreeBinder.forClass(MyAction.class);
+ *
+ * &#64;ConfigProperty(name = "timeout", min = 0)
+ * private long timeout = 5000;
+ *
+ * public MyAction(ConfigTree config) throws ConfigurationException {
+ *     BINDER.apply(config, this);
+ * }
+ * </pre>
+ * Bind through the binder of the declaring class rather than {@link #bind(ConfigTree, Object)}
+ * from a constructor: the fields of a subclass are only initialised once the superclass
+ * constructor has returned and would overwrite values bound earlier.
+ */
+public final class ConfigTreeBinder<T> {
+
+    private static final ClassValue<ConfigTreeBinder<?>> BINDERS = new ClassValue<ConfigTreeBinder<?>>() {
+        @Override
+        protected ConfigTreeBinder<?> computeValue(final Class<?> type) {
+            return new ConfigTreeBinder<Object>(type);
+        }
+    };
+
+    /**
+     * Field types bound as is, without conversion.
+     */
+    private static final int STRING = -1;
+
+    /**
+     * Conversion result of an invalid value.
+     */
+    private static final Object INVALID = new Object();
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<?> type;
+
+    private final Property[] properties;
+
+    private ConfigTreeBinder(final Class<?> type) {
+        final List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> current = type; null != current && Object.class != current; current = current.getSuperclass())
+            hierarchy.add(current);
+        Collections.reverse(hierarchy);
+        final List<Property> found = new ArrayList<Property>();
+        for (Class<?> declaring : hierarchy)
+            for (Field field : declaring.getDeclaredFields()) {
+                final ConfigProperty annotation = field.getAnnotation(ConfigProperty.class);
+                if (null != annotation)
+                    found.add(new Property(field, annotation));
+            }
+        this.type = type;
+        this.properties = found.toArray(new Property[found.size()]);
+    }
+
+    /**
+     * @param type Class - the class whose annotated fields are bound
+     * @return ConfigTreeBinder - the cached binder of the class
+     * @throws IllegalArgumentException - if an annotated field is static, final or of an unsupported type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> ConfigTreeBinder<T> forClass(final Class<T> type) {
+        if (null == type)
+            throw new IllegalArgumentException();
+        return (ConfigTreeBinder<T>) BINDERS.get(type);
+    }
+
+    /**
+     * Bind the annotated fields of the runtime class of the target.
+     *
+     * @param config ConfigTree - the configuration
+     * @param target Object - the object to fill
+     * @throws ConfigurationException - listing every invalid or missing attribute
+     */
+    @SuppressWarnings("unchecked")
+    public static void bind(final ConfigTree config, final Object target) throws ConfigurationException {
+        if (null == target)
+            throw new IllegalArgumentException();
+        ((ConfigTreeBinder<Object>) forClass(target.getClass())).apply(config, target);
+    }
+
+    /**
+     * Fill the annotated fields of the target, or none of them if a value is invalid.
+     *
+     * @param config ConfigTree - the configuration
+     * @param target T - the object to fill
+     * @throws ConfigurationException - listing every invalid or missing attribute
+     */
+    public void apply(final ConfigTree config, final T target) throws ConfigurationException {
+        if (null == config || null == target)
+            throw new IllegalArgumentException();
+        final Object[] values = new Object[properties.length];
+        List<String> errors = null;
+        for (int i = 0; i < properties.length; i++) {
+            values[i] = properties[i].read(config);
+            if (INVALID == values[i]) {
+                if (null == errors)
+                    errors = new ArrayList<String>();
+                errors.add(properties[i].problem(config));
+            }
+        }
+        if (null != errors)
+            throw invalid(errors);
+        for (int i = 0; i < properties.length; i++)
+            if (null != values[i])
+                properties[i].write(target, values[i]);
+    }
+
+    /**
+     * Check a configuration without binding it, e.g. before a reload is applied.
+     *
+     * @param config ConfigTree - the configuration
+     * @return List - a description of every invalid or missing attribute, empty if there are none
+     */
+    public List<String> validate(final ConfigTree config) {
+        if (null == config)
+            throw new IllegalArgumentException();
+        final List<String> errors = new ArrayList<String>();
+        for (Property property : properties)
+            if (INVALID == property.read(config))
+                errors.add(property.problem(config));
+        return errors;
+    }
+
+    /**
+     * @return List - the names of the attributes bound, in binding order
+     */
+    public List<String> getAttributeNames() {
+        final List<String> names = new ArrayList<String>(properties.length);
+        for (Property property : properties)
+            names.add(property.attribute);
+        return names;
+    }
+
+    private ConfigurationException invalid(final List<String> errors) {
+        final StringBuilder message = new StringBuilder("Invalid configuration for ").append(type.getName()).append(':');
+        for (String error : errors)
+            message.append("\n  ").append(error);
+        return new ConfigurationException(message.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigTreeBinder[" + type.getName() + ", " + getAttributeNames() + "]";
+    }
+
+    /**
+     * One annotated field.
+     */
+    private static final class Property {
+        private final String attribute;
+
+        private final boolean required;
+
+        private final long min;
+
+        private final long max;
+
+        /**
+         * STRING or a ConfigTree.TypedValue kind.
+         */
+        private final int kind;
+
+        private final Object qualifier;
+
+        /**
+         * (Object target, Object value)void
+         */
+        private final MethodHandle setter;
+
+        Property(final Field field, final ConfigProperty annotation) {
+            final String where = field.getDeclaringClass().getName() + "." + field.getName();
+            if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers()))
+                throw new IllegalArgumentException("@ConfigProperty field " + where + " must not be static or final");
+            attribute = (0 == annotation.name().length()) ? field.getName() : annotation.name();
+            required = annotation.required();
+            min = annotation.min();
+            max = annotation.max();
+
+            final Class<?> fieldType = field.getType();
+            if (String.class == fieldType) {
+                kind = STRING;
+                qualifier = null;
+            } else if (int.class == fieldType || Integer.class == fieldType) {
+                kind = ConfigTree.TypedValue.INT;
+                qualifier = null;
+            } else if (long.class == fieldType || Long.class == fieldType) {
+                kind = ConfigTree.TypedValue.LONG;
+                qualifier = null;
+            } else if (float.class == fieldType || Float.class == fieldType) {
+                kind = ConfigTree.TypedValue.FLOAT;
+                qualifier = null;
+            } else if (boolean.class == fieldType || Boolean.class == fieldType) {
+                kind = ConfigTree.TypedValue.BOOLEAN;
+                qualifier = null;
+            } else if (Duration.class == fieldType) {
+                kind = ConfigTree.TypedValue.DURATION;
+                qualifier = annotation.unit();
+            } else if (fieldType.isEnum()) {
+                kind = ConfigTree.TypedValue.ENUM;
+                qualifier = fieldType;
+            } else {
+                throw new IllegalArgumentException("Unsupported @ConfigProperty type " + fieldType.getName() + " of " + where);
+            }
+
+            try {
+                field.setAccessible(true);
+                setter = MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE);
+            } catch (final IllegalAccessException iae) {
+                throw new IllegalArgumentException("Cannot access @ConfigProperty field " + where, iae);
+            }
+        }
+
+        /**
+         * @return Object - the converted value, null if the attribute is not set, INVALID if it cannot be used
+         */
+        Object read(final ConfigTree config) {
+            final String raw = config.getAttribute(attribute);
+            if (null == raw)
+                return required ? INVALID : null;
+            if (STRING == kind)
+                return raw;
+            final ConfigTree.TypedValue typed = ConfigTree.TypedValue.parse(raw, kind, qualifier);
+            if (!typed._valid)
+                return INVALID;
+            switch (kind) {
+                case ConfigTree.TypedValue.INT:
+                    return inRange(typed._long) ? Integer.valueOf((int) typed._long) : INVALID;
+                case ConfigTree.TypedValue.LONG:
+                    return inRange(typed._long) ? Long.valueOf(typed._long) : INVALID;
+                case ConfigTree.TypedValue.FLOAT:
+                    return (typed._float >= min && typed._float <= max) ? Float.valueOf(typed._float) : INVALID;
+                case ConfigTree.TypedValue.BOOLEAN:
+                    return Boolean.valueOf(0 != typed._long);
+                default:
+                    return typed._object;
+            }
+        }
+
+        private boolean inRange(final long value) {
+            return value >= min && value <= max;
+        }
+
+        /**
+         * @return String - why the attribute could not be bound
+         */
+        String problem(final ConfigTree config) {
+            final String raw = config.getAttribute(attribute);
+            if (null == raw)
+                return "'" + attribute + "' is required";
+            if (STRING != kind) {
+                final ConfigTree.TypedValue typed = ConfigTree.TypedValue.parse(raw, kind, qualifier);
+                if (!typed._valid)
+                    return "'" + attribute + "' value '" + raw + "' is not " + ConfigTree.TypedValue.describe(kind, qualifier);
+            }
+            return "'" + attribute + "' value '" + raw + "' is not in the range [" + min + ", " + max + "]";
+        }
+
+        void write(final Object target, final Object value) {
+            try {
+                setter.invokeExact(target, value);
+            } catch (final RuntimeException re) {
+                throw re;
+            } catch (final Error error) {
+                throw error;
+            } catch (final Throwable th) {
+                throw new IllegalStateException("Failed to set " + attribute, th);
+            }
+        }
+    }
+}
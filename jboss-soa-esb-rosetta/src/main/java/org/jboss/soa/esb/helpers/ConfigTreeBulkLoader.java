@@ -0,0 +1,186 @@
+package org.jboss.soa.esb.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Parses a set of descriptors in parallel on a {@link ForkJoinPool}.
+ * <p/>
+ * Every descriptor is parsed by its own task, so startup scales with the number of
+ * cores when many archives are deployed.  The parsers share one concurrent
+ * {@link ConfigTreeSymbolTable}, so the names and common values repeated across
+ * descriptors are held once.  Results are returned in the order the descriptors were
+ * supplied, whatever order the tasks complete in.
+ * <p/>
+ * When descriptors fail to parse, every task is still waited for and the failure of
+ * the first failing descriptor, in supply order, is thrown.
+ */
+public class ConfigTreeBulkLoader {
+
+    private final ForkJoinPool pool;
+
+    private final ConfigTreeSymbolTable symbols;
+
+    /**
+     * Parse on the common pool, with a new concurrent symbol table.
+     */
+    public ConfigTreeBulkLoader() {
+        this(ForkJoinPool.commonPool(), new ConfigTreeSymbolTable(true));
+    }
+
+    /**
+     * @param pool    ForkJoinPool - where the descriptors are parsed
+     * @param symbols ConfigTreeSymbolTable - the concurrent table shared by the parsers
+     */
+    public ConfigTreeBulkLoader(ForkJoinPool pool, ConfigTreeSymbolTable symbols) {
+        if (null == pool || null == symbols)
+            throw new IllegalArgumentException();
+        if (!symbols.isConcurrent())
+            throw new IllegalArgumentException("The symbol table is shared between parsers and must be concurrent");
+        this.pool = pool;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Parse descriptor streams.  The streams are read on the pool threads and are not closed.
+     *
+     * @param inputs List - the streams to parse
+     * @return List - one tree per stream, in the same order
+     * @throws SAXException - if the xml format of a descriptor is invalid
+     * @throws IOException  - if an input/output error occurs
+     */
+    public List<ConfigTree> parse(final List<? extends InputStream> inputs) throws SAXException, IOException {
+        final List<ForkJoinTask<ConfigTree>> tasks = new ArrayList<ForkJoinTask<ConfigTree>>(inputs.size());
+        for (final InputStream input : inputs) {
+            if (null == input)
+                throw new IllegalArgumentException("Null descriptor stream");
+            tasks.add(pool.submit(new ParseTask(symbols) {
+                @Override
+                InputStream open() {
+                    return input;
+                }
+            }));
+        }
+        return join(tasks);
+    }
+
+    /**
+     * Parse descriptor files.
+     *
+     * @param files List - the files to parse
+     * @return List - one tree per file, in the same order
+     * @throws SAXException - if the xml format of a descriptor is invalid
+     * @throws IOException  - if an input/output error occurs
+     */
+    public List<ConfigTree> parseFiles(final List<File> files) throws SAXException, IOException {
+        final List<ForkJoinTask<ConfigTree>> tasks = new ArrayList<ForkJoinTask<ConfigTree>>(files.size());
+        for (final File file : files) {
+            if (null == file)
+                throw new IllegalArgumentException("Null descriptor file");
+            tasks.add(pool.submit(new ParseTask(symbols) {
+                @Override
+                InputStream open() throws IOException {
+                    return new BufferedInputStream(new FileInputStream(file));
+                }
+
+                @Override
+                boolean owns() {
+                    return true;
+                }
+
+                @Override
+                String describe() {
+                    return file.getPath();
+                }
+            }));
+        }
+        return join(tasks);
+    }
+
+    /**
+     * @return ConfigTreeSymbolTable - the table shared by the parsers
+     */
+    public ConfigTreeSymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    private static List<ConfigTree> join(final List<ForkJoinTask<ConfigTree>> tasks) throws SAXException, IOException {
+        final List<ConfigTree> trees = new ArrayList<ConfigTree>(tasks.size());
+        Throwable failure = null;
+        for (ForkJoinTask<ConfigTree> task : tasks) {
+            try {
+                trees.add(task.get());
+            } catch (ExecutionException e) {
+                if (null == failure)
+                    failure = unwrap(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while parsing descriptors", e);
+            }
+        }
+        if (null == failure)
+            return trees;
+        if (failure instanceof SAXException)
+            throw (SAXException) failure;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        throw (Error) failure;
+    }
+
+    /**
+     * the pool wraps the checked exceptions thrown by a Callable in a RuntimeException
+     */
+    private static Throwable unwrap(final Throwable failure) {
+        for (Throwable cause = failure; cause instanceof RuntimeException; cause = cause.getCause())
+            if (cause.getCause() instanceof SAXException || cause.getCause() instanceof IOException)
+                return cause.getCause();
+        return failure;
+    }
+
+    /**
+     * Parses one descriptor.
+     */
+    private abstract static class ParseTask implements Callable<ConfigTree> {
+        private final ConfigTreeSymbolTable symbols;
+
+        ParseTask(final ConfigTreeSymbolTable symbols) {
+            this.symbols = symbols;
+        }
+
+        abstract InputStream open() throws IOException;
+
+        boolean owns() {
+            return false;
+        }
+
+        String describe() {
+            return null;
+        }
+
+        public ConfigTree call() throws SAXException, IOException {
+            final InputStream input = open();
+            try {
+                return StaxConfigTreeBuilder.build(input, symbols);
+            } catch (SAXException e) {
+                final String name = describe();
+                throw (null == name) ? e : new SAXException("Invalid descriptor " + name + ": " + e.getMessage(), e);
+            } finally {
+                if (owns())
+                    input.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Read only list over an array of {@link ConfigTree} children.
+ * <p/>
+ * Nodes cache these views and hand out the same instance until their children change,
+ * so obtaining one allocates nothing.  The iterator is a small final class that the JIT
+ * can scalar replace in for-each loops.  Every mutator throws UnsupportedOperationException.
+ */
+final class ConfigTreeChildList extends AbstractList<ConfigTree> implements RandomAccess {
+
+    static final ConfigTreeChildList EMPTY = new ConfigTreeChildList(new ConfigTree[0]);
+
+    private final ConfigTree[] _trees;
+
+    ConfigTreeChildList(final ConfigTree[] trees) {
+        _trees = trees;
+    }
+
+    @Override
+    public ConfigTree get(final int index) {
+        return _trees[index];
+    }
+
+    @Override
+    public int size() {
+        return _trees.length;
+    }
+
+    @Override
+    public Iterator<ConfigTree> iterator() {
+        return new Itr(_trees);
+    }
+
+    /**
+     * @return ConfigTree[] - the backing array, shared and not to be modified
+     */
+    ConfigTree[] array() {
+        return _trees;
+    }
+
+    /**
+     * @return ConfigTree[] - a copy of the children the caller may keep or modify
+     */
+    ConfigTree[] copy() {
+        return (0 == _trees.length) ? _trees : _trees.clone();
+    }
+
+    private static final class Itr implements Iterator<ConfigTree> {
+        private final ConfigTree[] _trees;
+
+        private int _next;
+
+        Itr(final ConfigTree[] trees) {
+            _trees = trees;
+        }
+
+        public boolean hasNext() {
+            return _next < _trees.length;
+        }
+
+        public ConfigTree next() {
+            if (_next >= _trees.length) {
+                throw new NoSuchElementException();
+            }
+            return _trees[_next++];
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
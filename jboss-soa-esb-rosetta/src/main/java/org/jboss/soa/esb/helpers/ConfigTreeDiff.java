@@ -0,0 +1,392 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structural difference between two versions of a {@link ConfigTree}.
+ * <p/>
+ * Child elements of matching nodes are paired by name and, when present, by the
+ * value of the identity attribute (<i>name</i> by default), so inserting a service
+ * does not make every following service look changed.  Siblings sharing the same
+ * name and identity are paired in document order.
+ * <p/>
+ * A node is reported as {@link Kind#CHANGED} when its attributes, its text or the
+ * order of its child elements differ; the attribute level detail is available from
+ * {@link Change#getAttributeChanges()}.  Text children made only of whitespace are
+ * ignored, so re-indenting a descriptor is not a change.
+ */
+public final class ConfigTreeDiff {
+
+    /**
+     * The attribute used to pair sibling elements unless another one is supplied.
+     */
+    public static final String DEFAULT_IDENTITY_ATTRIBUTE = "name";
+
+    public enum Kind {
+        ADDED, REMOVED, CHANGED
+    }
+
+    private final String identityAttribute;
+
+    private final List<Change> changes = new ArrayList<Change>();
+
+    /**
+     * Old nodes with a change at or below them.
+     */
+    private final Map<ConfigTree, Boolean> dirty = new IdentityHashMap<ConfigTree, Boolean>();
+
+    /**
+     * Old nodes paired with their new version.
+     */
+    private final Map<ConfigTree, ConfigTree> counterparts = new IdentityHashMap<ConfigTree, ConfigTree>();
+
+    private ConfigTreeDiff(final String identityAttribute) {
+        this.identityAttribute = identityAttribute;
+    }
+
+    /**
+     * Compare two versions of a tree, pairing siblings on the <i>name</i> attribute.
+     *
+     * @param oldTree ConfigTree - the previous version
+     * @param newTree ConfigTree - the current version
+     * @return ConfigTreeDiff - the differences
+     */
+    public static ConfigTreeDiff compare(final ConfigTree oldTree, final ConfigTree newTree) {
+        return compare(oldTree, newTree, DEFAULT_IDENTITY_ATTRIBUTE);
+    }
+
+    /**
+     * Compare two versions of a tree.
+     *
+     * @param oldTree           ConfigTree - the previous version
+     * @param newTree           ConfigTree - the current version
+     * @param identityAttribute String - attribute used to pair siblings, null to pair on name and position only
+     * @return ConfigTreeDiff - the differences
+     */
+    public static ConfigTreeDiff compare(final ConfigTree oldTree, final ConfigTree newTree, final String identityAttribute) {
+        if (null == oldTree || null == newTree) {
+            throw new IllegalArgumentException("Both trees are required");
+        }
+        final ConfigTreeDiff diff = new ConfigTreeDiff(identityAttribute);
+        if (oldTree.getName().equals(newTree.getName())) {
+            diff.compareNodes(oldTree, newTree);
+        } else {
+            diff.record(new Change(Kind.REMOVED, oldTree, null, null, false, false), oldTree);
+            diff.record(new Change(Kind.ADDED, null, newTree, null, false, false), oldTree);
+        }
+        return diff;
+    }
+
+    /**
+     * @return List - every change, parents before their descendants
+     */
+    public List<Change> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @return boolean - true if both versions are equivalent
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Has the subtree rooted at a node of the old version changed?  Changes to the
+     * ancestors of the node do not count.
+     *
+     * @param oldNode ConfigTree - a node of the old version
+     * @return boolean - true if the node or any of its descendants was changed, added to or removed
+     */
+    public boolean isChanged(final ConfigTree oldNode) {
+        return dirty.containsKey(oldNode) || (!counterparts.containsKey(oldNode) && isInOldTree(oldNode));
+    }
+
+    /**
+     * @param oldNode ConfigTree - a node of the old version
+     * @return ConfigTree - the matching node of the new version, null if it was removed
+     */
+    public ConfigTree getCounterpart(final ConfigTree oldNode) {
+        return counterparts.get(oldNode);
+    }
+
+    private boolean isInOldTree(final ConfigTree node) {
+        // a node below a removed subtree has no counterpart and was not visited
+        for (ConfigTree dad = node.getParent(); null != dad; dad = dad.getParent()) {
+            if (dirty.containsKey(dad) && !counterparts.containsKey(dad)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void compareNodes(final ConfigTree oldTree, final ConfigTree newTree) {
+        counterparts.put(oldTree, newTree);
+        final List<AttributeChange> attributeChanges = compareAttributes(oldTree, newTree);
+        final boolean textChanged = !significantText(oldTree).equals(significantText(newTree));
+
+        final Map<String, ConfigTree> oldChildren = keyedChildren(oldTree);
+        final Map<String, ConfigTree> newChildren = keyedChildren(newTree);
+        final boolean reordered = isReordered(oldChildren, newChildren);
+
+        if (!attributeChanges.isEmpty() || textChanged || reordered) {
+            record(new Change(Kind.CHANGED, oldTree, newTree, attributeChanges, textChanged, reordered), oldTree);
+        }
+        for (Map.Entry<String, ConfigTree> entry : newChildren.entrySet()) {
+            final ConfigTree oldChild = oldChildren.get(entry.getKey());
+            if (null == oldChild) {
+                record(new Change(Kind.ADDED, null, entry.getValue(), null, false, false), oldTree);
+            } else {
+                compareNodes(oldChild, entry.getValue());
+            }
+        }
+        for (Map.Entry<String, ConfigTree> entry : oldChildren.entrySet()) {
+            if (!newChildren.containsKey(entry.getKey())) {
+                record(new Change(Kind.REMOVED, entry.getValue(), null, null, false, false), entry.getValue());
+            }
+        }
+    }
+
+    private void record(final Change change, final ConfigTree oldNode) {
+        changes.add(change);
+        for (ConfigTree node = oldNode; null != node && null == dirty.put(node, Boolean.TRUE); node = node.getParent()) {
+        }
+    }
+
+    private static List<AttributeChange> compareAttributes(final ConfigTree oldTree, final ConfigTree newTree) {
+        if (0 == oldTree.attributeCount() && 0 == newTree.attributeCount()) {
+            return Collections.emptyList();
+        }
+        final List<AttributeChange> result = new ArrayList<AttributeChange>(0);
+        for (String name : oldTree.getAttributeNames()) {
+            final String oldValue = oldTree.getAttribute(name);
+            final String newValue = newTree.getAttribute(name);
+            if (!oldValue.equals(newValue)) {
+                result.add(new AttributeChange(name, oldValue, newValue));
+            }
+        }
+        for (String name : newTree.getAttributeNames()) {
+            if (null == oldTree.getAttribute(name)) {
+                result.add(new AttributeChange(name, null, newTree.getAttribute(name)));
+            }
+        }
+        return result;
+    }
+
+    private static String significantText(final ConfigTree tree) {
+        StringBuilder text = null;
+        final int count = tree.childCount();
+        for (int i = 0; i < count; i++) {
+            final Object child = tree.childAt(i);
+            if (!(child instanceof ConfigTree)) {
+                final String value = child.toString();
+                if (value.trim().length() > 0) {
+                    if (null == text) {
+                        text = new StringBuilder();
+                    }
+                    text.append(value);
+                }
+            }
+        }
+        return (null == text) ? "" : text.toString();
+    }
+
+    private Map<String, ConfigTree> keyedChildren(final ConfigTree tree) {
+        final Map<String, ConfigTree> result = new LinkedHashMap<String, ConfigTree>();
+        Map<String, Integer> occurrences = null;
+        final int count = tree.childCount();
+        for (int i = 0; i < count; i++) {
+            final Object child = tree.childAt(i);
+            if (child instanceof ConfigTree) {
+                final ConfigTree element = (ConfigTree) child;
+                final String identity = (null == identityAttribute) ? null : element.getAttribute(identityAttribute);
+                final String key = (null == identity) ? element.getName() : element.getName() + '\u0000' + identity;
+                if (!result.containsKey(key)) {
+                    result.put(key, element);
+                    continue;
+                }
+                // same name and identity as an earlier sibling, pair them by position
+                if (null == occurrences) {
+                    occurrences = new HashMap<String, Integer>();
+                }
+                final Integer previous = occurrences.get(key);
+                final int occurrence = (null == previous) ? 1 : previous.intValue() + 1;
+                occurrences.put(key, Integer.valueOf(occurrence));
+                result.put(key + '\u0001' + occurrence, element);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isReordered(final Map<String, ConfigTree> oldChildren, final Map<String, ConfigTree> newChildren) {
+        final Iterator<String> oldKeys = oldChildren.keySet().iterator();
+        for (String key : newChildren.keySet()) {
+            if (!oldChildren.containsKey(key)) {
+                continue;
+            }
+            String oldKey = null;
+            while (oldKeys.hasNext()) {
+                oldKey = oldKeys.next();
+                if (newChildren.containsKey(oldKey)) {
+                    break;
+                }
+                oldKey = null;
+            }
+            if (!key.equals(oldKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        for (Change change : changes) {
+            result.append(change).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * One added, removed or changed node.
+     */
+    public static final class Change {
+        private final Kind kind;
+
+        private final ConfigTree oldTree;
+
+        private final ConfigTree newTree;
+
+        private final List<AttributeChange> attributeChanges;
+
+        private final boolean textChanged;
+
+        private final boolean reordered;
+
+        Change(final Kind kind, final ConfigTree oldTree, final ConfigTree newTree, final List<AttributeChange> attributeChanges,
+                final boolean textChanged, final boolean reordered) {
+            this.kind = kind;
+            this.oldTree = oldTree;
+            this.newTree = newTree;
+            this.attributeChanges = (null == attributeChanges) ? Collections.<AttributeChange>emptyList()
+                : Collections.unmodifiableList(attributeChanges);
+            this.textChanged = textChanged;
+            this.reordered = reordered;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return ConfigTree - the node in the old version, null if it was added
+         */
+        public ConfigTree getOldTree() {
+            return oldTree;
+        }
+
+        /**
+         * @return ConfigTree - the node in the new version, null if it was removed
+         */
+        public ConfigTree getNewTree() {
+            return newTree;
+        }
+
+        /**
+         * @return List - the attributes added, removed or modified on a changed node
+         */
+        public List<AttributeChange> getAttributeChanges() {
+            return attributeChanges;
+        }
+
+        /**
+         * @return boolean - true if the text content of a changed node differs
+         */
+        public boolean isTextChanged() {
+            return textChanged;
+        }
+
+        /**
+         * @return boolean - true if child elements present in both versions were reordered
+         */
+        public boolean isReordered() {
+            return reordered;
+        }
+
+        /**
+         * @return String - location of the node, for example /jbossesb/services/service[@name='Listener']
+         */
+        public String getPath() {
+            final StringBuilder path = new StringBuilder();
+            for (ConfigTree node = (null == newTree) ? oldTree : newTree; null != node; node = node.getParent()) {
+                final String name = node.getAttribute(DEFAULT_IDENTITY_ATTRIBUTE);
+                path.insert(0, (null == name) ? "" : "[@" + DEFAULT_IDENTITY_ATTRIBUTE + "='" + name + "']");
+                path.insert(0, node.getName()).insert(0, '/');
+            }
+            return path.toString();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder().append(kind).append(' ').append(getPath());
+            for (AttributeChange attributeChange : attributeChanges) {
+                result.append(' ').append(attributeChange);
+            }
+            if (textChanged) {
+                result.append(" text");
+            }
+            if (reordered) {
+                result.append(" order");
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * One attribute added, removed or modified.
+     */
+    public static final class AttributeChange {
+        private final String name;
+
+        private final String oldValue;
+
+        private final String newValue;
+
+        AttributeChange(final String name, final String oldValue, final String newValue) {
+            this.name = name;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return String - the previous value, null if the attribute was added
+         */
+        public String getOldValue() {
+            return oldValue;
+        }
+
+        /**
+         * @return String - the current value, null if the attribute was removed
+         */
+        public String getNewValue() {
+            return newValue;
+        }
+
+        @Override
+        public String toString() {
+            return "@" + name + ": " + oldValue + " -> " + newValue;
+        }
+    }
+}
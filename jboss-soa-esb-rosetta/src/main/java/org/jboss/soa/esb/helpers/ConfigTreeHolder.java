@@ -0,0 +1,155 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.soa.esb.ConfigurationException;
+
+/**
+ * Holds the current version of a configuration shared between threads.
+ * <p/>
+ * Every version is a read only snapshot, as returned by {@link ConfigTree#freeze()},
+ * so readers get a consistent tree with a single volatile read, never block and
+ * never see a partial change.  Writers publish a whole new version atomically:
+ * {@link #publish(ConfigTree)} replaces the current version outright and
+ * {@link #update(Editor)} edits a copy-on-write clone of the current version and
+ * retries when another writer published first.
+ * <p/>
+ * Versions do not refer to each other, so an old version is reclaimed by the garbage
+ * collector as soon as the last reader still holding it lets go; readers that need
+ * several consistent lookups should keep the tree or {@link Version} they obtained
+ * rather than calling {@link #get()} again.
+ */
+public class ConfigTreeHolder {
+
+    /**
+     * Edits a draft of the next version of the configuration.
+     */
+    public interface Editor {
+        /**
+         * Apply changes to the draft.  The draft may be discarded and this method called
+         * again on a new draft if another writer publishes in the meantime, so it should
+         * not have other side effects.
+         *
+         * @param draft ConfigTree - mutable copy of the current version
+         * @throws ConfigurationException - to abandon the update
+         */
+        void edit(ConfigTree draft) throws ConfigurationException;
+    }
+
+    /**
+     * One published version of the configuration.
+     */
+    public static final class Version {
+        private final long number;
+
+        private final ConfigTree tree;
+
+        private Version(final long number, final ConfigTree tree) {
+            this.number = number;
+            this.tree = tree;
+        }
+
+        /**
+         * @return long - the version number, starting at 1 and increasing with every publication
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * @return ConfigTree - the read only configuration of this version
+         */
+        public ConfigTree getTree() {
+            return tree;
+        }
+
+        @Override
+        public String toString() {
+            return "Version[" + number + ", " + tree.getName() + "]";
+        }
+    }
+
+    private final AtomicReference<Version> current;
+
+    /**
+     * @param initial ConfigTree - the first version of the configuration
+     */
+    public ConfigTreeHolder(final ConfigTree initial) {
+        if (null == initial)
+            throw new IllegalArgumentException();
+        current = new AtomicReference<Version>(new Version(1, initial.freeze()));
+    }
+
+    /**
+     * @return ConfigTree - the read only configuration of the current version
+     */
+    public ConfigTree get() {
+        return current.get().tree;
+    }
+
+    /**
+     * @return Version - the current version
+     */
+    public Version getVersion() {
+        return current.get();
+    }
+
+    /**
+     * Replace the current version, whatever it is.
+     *
+     * @param tree ConfigTree - the new configuration, a snapshot of it is published
+     * @return Version - the version published
+     */
+    public Version publish(final ConfigTree tree) {
+        if (null == tree)
+            throw new IllegalArgumentException();
+        final ConfigTree snapshot = tree.freeze();
+        while (true) {
+            final Version expected = current.get();
+            final Version next = new Version(expected.number + 1, snapshot);
+            if (current.compareAndSet(expected, next))
+                return next;
+        }
+    }
+
+    /**
+     * Replace the current version only if it is still the version supplied.
+     *
+     * @param expected Version - the version the new configuration was derived from
+     * @param tree     ConfigTree - the new configuration, a snapshot of it is published
+     * @return Version - the version published, null if another version was published since
+     */
+    public Version compareAndPublish(final Version expected, final ConfigTree tree) {
+        if (null == expected || null == tree)
+            throw new IllegalArgumentException();
+        final Version next = new Version(expected.number + 1, tree.freeze());
+        return current.compareAndSet(expected, next) ? next : null;
+    }
+
+    /**
+     * Derive and publish a new version from the current one.  The editor works on a
+     * copy-on-write clone, so only the nodes it changes are copied; if another version
+     * is published before the edited one, the edit is applied again to the newer version.
+     *
+     * @param editor Editor - applies the changes
+     * @return Version - the version published
+     * @throws ConfigurationException - if the editor abandoned the update
+     */
+    public Version update(final Editor editor) throws ConfigurationException {
+        if (null == editor)
+            throw new IllegalArgumentException();
+        while (true) {
+            final Version expected = current.get();
+            final ConfigTree draft = expected.tree.cloneObj(true);
+            editor.edit(draft);
+            final Version next = compareAndPublish(expected, draft);
+            if (null != next)
+                return next;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigTreeHolder[" + current.get() + "]";
+    }
+}
@@ -0,0 +1,337 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled path expression over {@link ConfigTree} nodes.
+ * <p/>
+ * An expression is compiled once into a plan of steps and may then be evaluated
+ * any number of times, from any thread.  Evaluation walks the children of each
+ * node in place and only allocates for the nodes it returns.  The syntax is a
+ * small subset of XPath:
+ * <pre>
+ *   services/service[@name='Listener']/actions/action[@class]
+ *   //listener[@is-gateway='true']
+ *   /jbossesb/services//property[@name!='gatewayClass']
+ * </pre>
+ * <ul>
+ * <li><i>name</i> or <i>*</i> - a child step</li>
+ * <li><i>//</i> - the following step matches descendants at any depth</li>
+ * <li><i>[@attr]</i>, <i>[@attr='value']</i>, <i>[@attr!='value']</i> - attribute predicates,
+ * several predicates on one step must all hold</li>
+ * <li>a leading <i>/</i> makes the path absolute: the first step is matched against the
+ * root of the tree the context node belongs to</li>
+ * </ul>
+ * Relative paths are evaluated against the children of the context node.  Results
+ * are in document order and hold each node at most once.
+ */
+public final class ConfigTreePath {
+
+    private final String expression;
+
+    private final boolean absolute;
+
+    private final Step[] steps;
+
+    /**
+     * Only paths with more than one descendant step can reach a node twice.
+     */
+    private final boolean mayRepeat;
+
+    private ConfigTreePath(final String expression, final boolean absolute, final Step[] steps) {
+        this.expression = expression;
+        this.absolute = absolute;
+        this.steps = steps;
+        int descendants = 0;
+        for (Step step : steps) {
+            if (step.descendant) {
+                descendants++;
+            }
+        }
+        this.mayRepeat = descendants > 1;
+    }
+
+    /**
+     * Compile a path expression.
+     *
+     * @param expression String - the path
+     * @return ConfigTreePath - the reusable query plan
+     * @throws IllegalArgumentException - if the expression is not valid
+     */
+    public static ConfigTreePath compile(final String expression) {
+        if (null == expression) {
+            throw new IllegalArgumentException("Path expression is null");
+        }
+        return new Parser(expression).parse();
+    }
+
+    /**
+     * @param context ConfigTree - the node the path is evaluated from
+     * @return ConfigTree - the first matching node in document order, null if none
+     */
+    public ConfigTree selectFirst(final ConfigTree context) {
+        final Collector collector = new Collector(true, false);
+        evaluate(context, collector);
+        return collector.first;
+    }
+
+    /**
+     * @param context ConfigTree - the node the path is evaluated from
+     * @return List - all matching nodes, in document order
+     */
+    public List<ConfigTree> select(final ConfigTree context) {
+        final Collector collector = new Collector(false, mayRepeat);
+        evaluate(context, collector);
+        return (null == collector.all) ? new ArrayList<ConfigTree>(0) : collector.all;
+    }
+
+    /**
+     * @param context ConfigTree - the node the path is evaluated from
+     * @return boolean - true if at least one node matches
+     */
+    public boolean matches(final ConfigTree context) {
+        return null != selectFirst(context);
+    }
+
+    private void evaluate(ConfigTree context, final Collector collector) {
+        if (null == context) {
+            throw new IllegalArgumentException("Context node is null");
+        }
+        if (!absolute) {
+            walk(context, 0, collector);
+            return;
+        }
+        while (null != context.getParent()) {
+            context = context.getParent();
+        }
+        visit(context, 0, collector);
+    }
+
+    /**
+     * Match the step against the children of the node.
+     */
+    private boolean walk(final ConfigTree node, final int index, final Collector collector) {
+        // children() rather than childAt(): the nodes selected are handed out, so a
+        // copy-on-write clone must return its own nodes, not those of its snapshot
+        final List<ConfigTree> children = node.children();
+        final int count = children.size();
+        for (int i = 0; i < count; i++) {
+            if (visit(children.get(i), index, collector)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Match the step against the node itself, then below it for descendant steps.
+     *
+     * @return boolean - true once the collector needs no more results
+     */
+    private boolean visit(final ConfigTree node, final int index, final Collector collector) {
+        final Step step = steps[index];
+        if (step.matches(node)) {
+            if (index + 1 == steps.length) {
+                if (collector.add(node)) {
+                    return true;
+                }
+            } else if (walk(node, index + 1, collector)) {
+                return true;
+            }
+        }
+        return step.descendant && walk(node, index, collector);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * One compiled step: the axis, the name test and the attribute predicates.
+     */
+    private static final class Step {
+        final boolean descendant;
+
+        final String name;
+
+        final String[] attributes;
+
+        final String[] values;
+
+        final boolean[] negated;
+
+        Step(final boolean descendant, final String name, final List<String[]> predicates) {
+            this.descendant = descendant;
+            this.name = name;
+            final int count = predicates.size();
+            attributes = new String[count];
+            values = new String[count];
+            negated = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                final String[] predicate = predicates.get(i);
+                attributes[i] = predicate[0];
+                values[i] = predicate[1];
+                negated[i] = (null != predicate[2]);
+            }
+        }
+
+        boolean matches(final ConfigTree node) {
+            if (null != name && !name.equals(node.getName())) {
+                return false;
+            }
+            for (int i = 0; i < attributes.length; i++) {
+                final String actual = node.getAttribute(attributes[i]);
+                if (null == values[i]) {
+                    if (null == actual) {
+                        return false;
+                    }
+                } else if (values[i].equals(actual) == negated[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Collector {
+        final boolean firstOnly;
+
+        final Map<ConfigTree, Boolean> seen;
+
+        ConfigTree first;
+
+        List<ConfigTree> all;
+
+        Collector(final boolean firstOnly, final boolean dedup) {
+            this.firstOnly = firstOnly;
+            this.seen = dedup ? new IdentityHashMap<ConfigTree, Boolean>() : null;
+        }
+
+        /**
+         * @return boolean - true if evaluation can stop
+         */
+        boolean add(final ConfigTree node) {
+            if (firstOnly) {
+                first = node;
+                return true;
+            }
+            if (null != seen && null != seen.put(node, Boolean.TRUE)) {
+                return false;
+            }
+            if (null == all) {
+                all = new ArrayList<ConfigTree>();
+            }
+            all.add(node);
+            return false;
+        }
+    }
+
+    private static final class Parser {
+        private final String text;
+
+        private int pos;
+
+        Parser(final String text) {
+            this.text = text;
+        }
+
+        ConfigTreePath parse() {
+            boolean absolute = false;
+            boolean descendant = false;
+            if (text.startsWith("//")) {
+                descendant = true;
+                pos = 2;
+            } else if (text.startsWith("/")) {
+                absolute = true;
+                pos = 1;
+            }
+            final List<Step> steps = new ArrayList<Step>();
+            while (true) {
+                steps.add(step(descendant));
+                if (pos == text.length()) {
+                    break;
+                }
+                expect('/');
+                descendant = (pos < text.length() && text.charAt(pos) == '/');
+                if (descendant) {
+                    pos++;
+                }
+            }
+            return new ConfigTreePath(text, absolute, steps.toArray(new Step[steps.size()]));
+        }
+
+        private Step step(final boolean descendant) {
+            final String name;
+            if (pos < text.length() && text.charAt(pos) == '*') {
+                pos++;
+                name = null;
+            } else {
+                name = name();
+            }
+            final List<String[]> predicates = new ArrayList<String[]>(2);
+            while (pos < text.length() && text.charAt(pos) == '[') {
+                pos++;
+                expect('@');
+                final String attribute = name();
+                String value = null;
+                String negated = null;
+                if (pos < text.length() && text.charAt(pos) != ']') {
+                    if (text.charAt(pos) == '!') {
+                        pos++;
+                        negated = "!";
+                    }
+                    expect('=');
+                    value = literal();
+                }
+                expect(']');
+                predicates.add(new String[] {attribute, value, negated});
+            }
+            return new Step(descendant, name, predicates);
+        }
+
+        private String name() {
+            final int start = pos;
+            while (pos < text.length()) {
+                final char ch = text.charAt(pos);
+                if (ch == '/' || ch == '[' || ch == ']' || ch == '=' || ch == '!' || ch == '@'
+                        || ch == '\'' || ch == '"' || ch == '*' || Character.isWhitespace(ch)) {
+                    break;
+                }
+                pos++;
+            }
+            if (start == pos) {
+                throw error("name expected");
+            }
+            return text.substring(start, pos);
+        }
+
+        private String literal() {
+            if (pos >= text.length() || (text.charAt(pos) != '\'' && text.charAt(pos) != '"')) {
+                throw error("quoted value expected");
+            }
+            final char quote = text.charAt(pos++);
+            final int end = text.indexOf(quote, pos);
+            if (end < 0) {
+                throw error("unterminated value");
+            }
+            final String value = text.substring(pos, end);
+            pos = end + 1;
+            return value;
+        }
+
+        private void expect(final char ch) {
+            if (pos >= text.length() || text.charAt(pos) != ch) {
+                throw error("'" + ch + "' expected");
+            }
+            pos++;
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException("Invalid path expression '" + text + "' at position " + pos + ": " + message);
+        }
+    }
+}
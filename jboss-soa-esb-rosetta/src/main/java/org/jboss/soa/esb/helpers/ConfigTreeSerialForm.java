@@ -0,0 +1,48 @@
+package org.jboss.soa.esb.helpers;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+
+/**
+ * Serialized form of a {@link ConfigTree}, written through the compact
+ * {@link ConfigTreeBinaryCodec} encoding instead of default Java serialization.
+ * <p/>
+ * Frozen snapshots are restored as snapshots.  The parent of the serialized node
+ * is not written, so a deserialized tree has no parent.
+ */
+final class ConfigTreeSerialForm implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient ConfigTree tree;
+
+    private transient int flags;
+
+    /**
+     * Required by Externalizable.
+     */
+    public ConfigTreeSerialForm() {
+    }
+
+    ConfigTreeSerialForm(final ConfigTree tree) {
+        this.tree = tree;
+        this.flags = (tree instanceof FrozenConfigTree) ? ConfigTreeBinaryCodec.FLAG_FROZEN : 0;
+    }
+
+    public void writeExternal(final ObjectOutput out) throws IOException {
+        ConfigTreeBinaryCodec.write(out, tree, flags);
+    }
+
+    public void readExternal(final ObjectInput in) throws IOException {
+        final ConfigTreeBinaryCodec.Encoded encoded = ConfigTreeBinaryCodec.read(in, null);
+        tree = encoded.tree;
+        flags = encoded.flags;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        return new ConfigTreeBinaryCodec.Encoded(tree, flags).resolve();
+    }
+}
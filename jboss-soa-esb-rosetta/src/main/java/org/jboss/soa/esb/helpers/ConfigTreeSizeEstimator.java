@@ -0,0 +1,172 @@
+package org.jboss.soa.esb.helpers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the heap held by {@link ConfigTree}s, in total and by element name.
+ * <p/>
+ * Each element is charged for its node, the attribute and child storage it owns and
+ * the strings (name, attribute names and values, text) it is the first to refer to;
+ * a String instance shared by several nodes, as pooled symbols are, is only counted
+ * once.  Trees added to the same estimator share that accounting, so the estimate of
+ * several trees is the heap they hold together.
+ * <p/>
+ * Sizes assume a 64-bit JVM with compressed references: 12 byte object headers, 4 byte
+ * references and objects aligned to 8 bytes.  Storage shared with a snapshot by a
+ * copy-on-write clone is not charged to the clone, lazy subtrees that have not been
+ * parsed are not parsed, and the lookup caches nodes rebuild on demand are ignored.
+ */
+public final class ConfigTreeSizeEstimator {
+
+    static final int HEADER = 12;
+
+    static final int REFERENCE = 4;
+
+    static final int ARRAY_HEADER = 16;
+
+    private final Map<String, Object> seen = new IdentityHashMap<String, Object>();
+
+    private final Map<String, long[]> byElement = new HashMap<String, long[]>();
+
+    private long total;
+
+    private int nodes;
+
+    /**
+     * @param tree ConfigTree - the tree to estimate
+     * @return long - estimated number of bytes held by the tree
+     */
+    public static long estimate(final ConfigTree tree) {
+        return new ConfigTreeSizeEstimator().add(tree).getTotal();
+    }
+
+    /**
+     * @param tree ConfigTree - the tree to estimate
+     * @return Map - estimated bytes held by the elements of each name, largest first
+     */
+    public static Map<String, Long> estimateByElement(final ConfigTree tree) {
+        return new ConfigTreeSizeEstimator().add(tree).getByElement();
+    }
+
+    /**
+     * Add a tree to the estimate.
+     *
+     * @param tree ConfigTree - the root of the tree
+     * @return ConfigTreeSizeEstimator - this estimator
+     */
+    public ConfigTreeSizeEstimator add(final ConfigTree tree) {
+        if (null == tree)
+            throw new IllegalArgumentException();
+        walk(tree);
+        return this;
+    }
+
+    /**
+     * @return long - estimated number of bytes held by the trees added
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return int - the number of elements estimated
+     */
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * @return Map - estimated bytes held by the elements of each name, largest first
+     */
+    public Map<String, Long> getByElement() {
+        final List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(byElement.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(final Map.Entry<String, long[]> first, final Map.Entry<String, long[]> second) {
+                return Long.compare(second.getValue()[0], first.getValue()[0]);
+            }
+        });
+        final Map<String, Long> result = new LinkedHashMap<String, Long>(entries.size() * 2);
+        for (Map.Entry<String, long[]> entry : entries)
+            result.put(entry.getKey(), Long.valueOf(entry.getValue()[0]));
+        return result;
+    }
+
+    private void walk(final ConfigTree node) {
+        nodes++;
+        long size = node.estimateOwnSize() + string(node.getName());
+        if (node.ownsAttributes()) {
+            for (String name : node.getAttributeNames())
+                size += string(name) + string(node.getAttribute(name));
+        }
+        if (node.ownsChildren()) {
+            final int count = node.childCount();
+            for (int i = 0; i < count; i++) {
+                final Object child = node.childAt(i);
+                if (child instanceof ConfigTree)
+                    walk((ConfigTree) child);
+                else
+                    size += string((String) child);
+            }
+        }
+        long[] bytes = byElement.get(node.getName());
+        if (null == bytes)
+            byElement.put(node.getName(), bytes = new long[1]);
+        bytes[0] += size;
+        total += size;
+    }
+
+    private long string(final String value) {
+        if (null == value || null != seen.put(value, Boolean.TRUE))
+            return 0;
+        return ConfigTreeSymbolTable.estimateSize(value);
+    }
+
+    /**
+     * @return long - estimated size of an instance of the class, without what its fields refer to
+     */
+    static long shallowSize(final Class<?> type) {
+        long size = HEADER;
+        for (Class<?> current = type; null != current; current = current.getSuperclass())
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()))
+                    continue;
+                final Class<?> fieldType = field.getType();
+                if (!fieldType.isPrimitive())
+                    size += REFERENCE;
+                else if (long.class == fieldType || double.class == fieldType)
+                    size += 8;
+                else if (int.class == fieldType || float.class == fieldType)
+                    size += 4;
+                else if (short.class == fieldType || char.class == fieldType)
+                    size += 2;
+                else
+                    size += 1;
+            }
+        return align(size);
+    }
+
+    /**
+     * @return long - estimated size of an array
+     */
+    static long arraySize(final int length, final int elementSize) {
+        return align(ARRAY_HEADER + (long) length * elementSize);
+    }
+
+    private static long align(final long size) {
+        return (size + 7) & ~7L;
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigTreeSizeEstimator[nodes=" + nodes + ", bytes=" + total + "]";
+    }
+}
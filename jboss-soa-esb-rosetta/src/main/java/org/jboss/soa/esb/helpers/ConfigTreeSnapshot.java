@@ -0,0 +1,318 @@
+package org.jboss.soa.esb.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * Precompiled binary snapshot of an XML descriptor.
+ * <p/>
+ * The snapshot holds the {@link ConfigTreeBinaryCodec} encoding of the parsed
+ * descriptor together with the SHA-256 checksum of the XML it was compiled from.
+ * {@link #load()} memory maps the snapshot and decodes it when the checksum still
+ * matches the descriptor and the encoded tree is intact, and otherwise parses the XML with
+ * {@link ConfigTree#fromInputStream(InputStream)} and rewrites the snapshot, so the
+ * first boot after a change pays for the parse once.  Snapshots can also be
+ * compiled at build time through {@link #main(String[])}.
+ * <p/>
+ * Snapshot layout:
+ * <pre>
+ *   int     magic            'CTSN'
+ *   byte    version
+ *   byte[32] SHA-256 of the descriptor
+ *   int     CRC-32 of the rest of the snapshot
+ *   long    nanoseconds the XML parse took when the snapshot was compiled
+ *   int     length of the encoded tree
+ *   ...     encoded tree
+ * </pre>
+ * A snapshot that is truncated, fails its CRC or cannot be decoded is treated as stale.
+ */
+public class ConfigTreeSnapshot {
+
+    private static final Logger logger = Logger.getLogger(ConfigTreeSnapshot.class);
+
+    /**
+     * Suffix appended to the descriptor name when no snapshot file is supplied.
+     */
+    public static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final int MAGIC = 0x4354534E;
+
+    private static final int VERSION = 2;
+
+    private static final int CHECKSUM_LENGTH = 32;
+
+    private static final int HEADER_LENGTH = 4 + 1 + CHECKSUM_LENGTH + 8 + 4 + 4;
+
+    private final File source;
+
+    private final File snapshot;
+
+    private boolean fromSnapshot;
+
+    private long loadTime;
+
+    private long parseTime;
+
+    /**
+     * @param source File - the XML descriptor, the snapshot is kept next to it
+     */
+    public ConfigTreeSnapshot(File source) {
+        this(source, new File(source.getPath() + SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * @param source   File - the XML descriptor
+     * @param snapshot File - the snapshot of the descriptor
+     */
+    public ConfigTreeSnapshot(File source, File snapshot) {
+        this.source = source;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Load the descriptor, from the snapshot when it is up to date.
+     *
+     * @return ConfigTree - the root of the descriptor
+     * @throws SAXException - if the snapshot is stale and the xml format is invalid
+     * @throws IOException  - if the descriptor cannot be read
+     */
+    public ConfigTree load() throws SAXException, IOException {
+        final long start = System.nanoTime();
+        final byte[] xml = readFully(source);
+        final byte[] checksum = checksum(xml);
+
+        ConfigTree tree = null;
+        if (snapshot.isFile()) {
+            try {
+                tree = readSnapshot(checksum);
+            } catch (IOException e) {
+                logger.warn("Ignoring unreadable snapshot '" + snapshot + "': " + e.getMessage());
+            } catch (RuntimeException e) {
+                logger.warn("Ignoring corrupt snapshot '" + snapshot + "': " + e);
+            }
+        }
+        fromSnapshot = (null != tree);
+        if (fromSnapshot) {
+            loadTime = System.nanoTime() - start;
+            if (logger.isInfoEnabled()) {
+                logger.info("Loaded '" + source + "' from snapshot in " + millis(loadTime) + "ms, saving "
+                    + millis(parseTime - loadTime) + "ms over parsing the XML");
+            }
+            return tree;
+        }
+
+        final long parseStart = System.nanoTime();
+        tree = ConfigTree.fromInputStream(new ByteArrayInputStream(xml));
+        parseTime = System.nanoTime() - parseStart;
+        loadTime = System.nanoTime() - start;
+        try {
+            writeSnapshot(tree, checksum, parseTime);
+        } catch (IOException e) {
+            logger.warn("Unable to write snapshot '" + snapshot + "': " + e.getMessage());
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Parsed '" + source + "' in " + millis(parseTime) + "ms, snapshot was missing or stale");
+        }
+        return tree;
+    }
+
+    /**
+     * Compile the snapshot if it is missing or stale.
+     *
+     * @return boolean - true if the snapshot was written
+     * @throws SAXException - if the xml format is invalid
+     * @throws IOException  - if the descriptor cannot be read or the snapshot written
+     */
+    public boolean compile() throws SAXException, IOException {
+        final byte[] xml = readFully(source);
+        final byte[] checksum = checksum(xml);
+        if (snapshot.isFile()) {
+            try {
+                if (null != readSnapshot(checksum)) {
+                    return false;
+                }
+            } catch (IOException ignore) {
+                // rewritten below
+            } catch (RuntimeException ignore) {
+                // rewritten below
+            }
+        }
+        final long parseStart = System.nanoTime();
+        final ConfigTree tree = ConfigTree.fromInputStream(new ByteArrayInputStream(xml));
+        writeSnapshot(tree, checksum, System.nanoTime() - parseStart);
+        return true;
+    }
+
+    /**
+     * @return boolean - true if the last {@link #load()} used the snapshot
+     */
+    public boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    /**
+     * @return long - nanoseconds the last {@link #load()} took
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * @return long - nanoseconds the XML parse took when the snapshot was compiled,
+     *         or during the last {@link #load()} that parsed the XML
+     */
+    public long getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * @return long - nanoseconds the last {@link #load()} saved by using the snapshot, 0 if it parsed the XML
+     */
+    public long getTimeSaved() {
+        return fromSnapshot ? Math.max(0, parseTime - loadTime) : 0;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    public File getSnapshot() {
+        return snapshot;
+    }
+
+    private ConfigTree readSnapshot(final byte[] checksum) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_LENGTH || MAGIC != buffer.getInt() || VERSION != buffer.get()) {
+                throw new IOException("not a ConfigTree snapshot");
+            }
+            final byte[] stored = new byte[CHECKSUM_LENGTH];
+            buffer.get(stored);
+            if (!Arrays.equals(checksum, stored)) {
+                return null;
+            }
+            final int crc = buffer.getInt();
+            final CRC32 actualCrc = new CRC32();
+            actualCrc.update(buffer.duplicate());
+            if (crc != (int) actualCrc.getValue()) {
+                throw new IOException("snapshot checksum mismatch");
+            }
+            final long compiledParseTime = buffer.getLong();
+            final int length = buffer.getInt();
+            if (length != buffer.remaining()) {
+                throw new IOException("truncated snapshot, " + buffer.remaining() + " of " + length + " bytes");
+            }
+            final ConfigTree tree = ConfigTreeBinaryCodec.read(new DataInputStream(new ByteBufferInputStream(buffer)),
+                new ConfigTreeSymbolTable()).resolve();
+            if (buffer.hasRemaining()) {
+                throw new IOException(buffer.remaining() + " bytes left after the encoded tree");
+            }
+            parseTime = compiledParseTime;
+            return tree;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeSnapshot(final ConfigTree tree, final byte[] checksum, final long compileParseTime) throws IOException {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream(4096);
+        final DataOutputStream encoder = new DataOutputStream(encoded);
+        ConfigTreeBinaryCodec.write(encoder, tree, 0);
+        encoder.flush();
+        final byte[] payload = encoded.toByteArray();
+        final ByteBuffer lengths = ByteBuffer.allocate(8 + 4);
+        lengths.putLong(compileParseTime).putInt(payload.length).flip();
+        final CRC32 crc = new CRC32();
+        crc.update(lengths);
+        crc.update(payload);
+        final File parent = snapshot.getAbsoluteFile().getParentFile();
+        final File temp = File.createTempFile(snapshot.getName(), ".tmp", parent);
+        try {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeByte(VERSION);
+                output.write(checksum);
+                output.writeInt((int) crc.getValue());
+                output.writeLong(compileParseTime);
+                output.writeInt(payload.length);
+                output.write(payload);
+            } finally {
+                output.close();
+            }
+            // readers either see the previous snapshot or the complete new one
+            if (!temp.renameTo(snapshot) && !(snapshot.delete() && temp.renameTo(snapshot))) {
+                throw new IOException("unable to replace " + snapshot);
+            }
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            final long length = file.length();
+            byte[] buffer = new byte[(int) Math.max(length, 512)];
+            int count = 0;
+            int read;
+            while ((read = input.read(buffer, count, buffer.length - count)) > 0) {
+                count += read;
+                if (count == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            return (count == buffer.length) ? buffer : Arrays.copyOf(buffer, count);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] checksum(final byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static long millis(final long nanos) {
+        return nanos / 1000000L;
+    }
+
+    /**
+     * Compile the snapshots of the descriptors named on the command line.
+     *
+     * @param args String[] - the descriptors
+     * @throws Exception - if a descriptor cannot be compiled
+     */
+    public static void main(String[] args) throws Exception {
+        for (String name : args) {
+            final ConfigTreeSnapshot snapshot = new ConfigTreeSnapshot(new File(name));
+            System.out.println((snapshot.compile() ? "Compiled " : "Up to date ") + snapshot.getSnapshot());
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package org.jboss.soa.esb.helpers;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Parse, serialization and clone timings of {@link ConfigTree}s, and the estimated heap
+ * held by the configurations of the managed instances, exposed as an MXBean.
+ * <p/>
+ * The timings cover every call made in the JVM to {@link ConfigTree#fromInputStream},
+ * {@link ConfigTree#fromXml}, {@link ConfigTree#toXml} and {@link ConfigTree#cloneObj};
+ * recording one costs two clock reads and a few uncontended adds.  Managed instances
+ * register their configuration when they register their lifecycle MBean and release it
+ * when they are destroyed; the MXBean is registered, as {@link #OBJECT_NAME}, with the
+ * first configuration and unregistered when the last one is released.
+ * <p/>
+ * Heap estimates are computed by {@link ConfigTreeSizeEstimator} when they are read,
+ * walking the live configurations from the JMX thread while their owners may still be
+ * changing them; a walk that trips over a change is retried, and the figures are only
+ * ever a best-effort estimate.
+ */
+public final class ConfigTreeStatistics implements ConfigTreeStatisticsMXBean {
+
+    private static final Logger logger = Logger.getLogger(ConfigTreeStatistics.class);
+
+    /**
+     * The name the MXBean is registered under.
+     */
+    public static final String OBJECT_NAME = "jboss.esb:service=ConfigTreeStatistics";
+
+    static final int FROM_INPUT_STREAM = 0;
+
+    static final int FROM_XML = 1;
+
+    static final int TO_XML = 2;
+
+    static final int CLONE_OBJ = 3;
+
+    private static final int OPERATIONS = 4;
+
+    /**
+     * Walks of the managed configurations tried before settling for a partial estimate.
+     */
+    private static final int ESTIMATE_ATTEMPTS = 3;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(final long left, final long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private static final ConfigTreeStatistics INSTANCE = new ConfigTreeStatistics();
+
+    private final LongAdder[] counts = new LongAdder[OPERATIONS];
+
+    private final LongAdder[] nanos = new LongAdder[OPERATIONS];
+
+    private final LongAccumulator[] maxNanos = new LongAccumulator[OPERATIONS];
+
+    /**
+     * The registered configurations, guarded by itself.
+     */
+    private final Set<ConfigTree> managed = Collections.newSetFromMap(new IdentityHashMap<ConfigTree, Boolean>());
+
+    /**
+     * Whether this instance is the registered MXBean, guarded by managed.
+     */
+    private boolean registered;
+
+    private ConfigTreeStatistics() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            counts[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+            maxNanos[i] = new LongAccumulator(MAX, 0);
+        }
+    }
+
+    /**
+     * @return ConfigTreeStatistics - the statistics of this JVM
+     */
+    public static ConfigTreeStatistics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record one timed operation.
+     *
+     * @param operation int - FROM_INPUT_STREAM, FROM_XML, TO_XML or CLONE_OBJ
+     * @param start     long - System.nanoTime() when the operation started
+     */
+    static void record(final int operation, final long start) {
+        final long elapsed = System.nanoTime() - start;
+        INSTANCE.counts[operation].increment();
+        INSTANCE.nanos[operation].add(elapsed);
+        INSTANCE.maxNanos[operation].accumulate(elapsed);
+    }
+
+    /**
+     * Include the configuration of a managed instance in the heap estimates, registering
+     * the MXBean if it is not registered yet.
+     *
+     * @param config ConfigTree - the configuration
+     */
+    public static void register(final ConfigTree config) {
+        if (null == config)
+            throw new IllegalArgumentException();
+        synchronized (INSTANCE.managed) {
+            INSTANCE.managed.add(config);
+            if (INSTANCE.registered)
+                return;
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+                INSTANCE.registered = true;
+            } catch (final InstanceAlreadyExistsException iaee) {
+                // still registered by another deployment's copy of this class, retried with the next configuration
+                if (logger.isDebugEnabled())
+                    logger.debug(OBJECT_NAME + " already registered");
+            } catch (final JMException jme) {
+                logger.warn("Failed to register " + OBJECT_NAME, jme);
+            }
+        }
+    }
+
+    /**
+     * Drop the configuration of a managed instance from the heap estimates, unregistering
+     * the MXBean with the last one so that it does not pin the class loader of an
+     * undeployed ESB.
+     *
+     * @param config ConfigTree - the configuration
+     */
+    public static void unregister(final ConfigTree config) {
+        synchronized (INSTANCE.managed) {
+            INSTANCE.managed.remove(config);
+            if (!INSTANCE.registered || !INSTANCE.managed.isEmpty())
+                return;
+            INSTANCE.registered = false;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+            } catch (final JMException jme) {
+                logger.warn("Failed to unregister " + OBJECT_NAME, jme);
+            }
+        }
+    }
+
+    private List<ConfigTree> managed() {
+        synchronized (managed) {
+            return new ArrayList<ConfigTree>(managed);
+        }
+    }
+
+    private long count(final int operation) {
+        return counts[operation].sum();
+    }
+
+    private double averageMillis(final int operation) {
+        final long count = counts[operation].sum();
+        return (0 == count) ? 0 : nanos[operation].sum() / (count * 1e6);
+    }
+
+    private double maxMillis(final int operation) {
+        return maxNanos[operation].get() / 1e6;
+    }
+
+    public long getFromInputStreamCount() {
+        return count(FROM_INPUT_STREAM);
+    }
+
+    public double getFromInputStreamAverageMillis() {
+        return averageMillis(FROM_INPUT_STREAM);
+    }
+
+    public double getFromInputStreamMaxMillis() {
+        return maxMillis(FROM_INPUT_STREAM);
+    }
+
+    public long getFromXmlCount() {
+        return count(FROM_XML);
+    }
+
+    public double getFromXmlAverageMillis() {
+        return averageMillis(FROM_XML);
+    }
+
+    public double getFromXmlMaxMillis() {
+        return maxMillis(FROM_XML);
+    }
+
+    public long getToXmlCount() {
+        return count(TO_XML);
+    }
+
+    public double getToXmlAverageMillis() {
+        return averageMillis(TO_XML);
+    }
+
+    public double getToXmlMaxMillis() {
+        return maxMillis(TO_XML);
+    }
+
+    public long getCloneObjCount() {
+        return count(CLONE_OBJ);
+    }
+
+    public double getCloneObjAverageMillis() {
+        return averageMillis(CLONE_OBJ);
+    }
+
+    public double getCloneObjMaxMillis() {
+        return maxMillis(CLONE_OBJ);
+    }
+
+    public int getManagedConfigurationCount() {
+        synchronized (managed) {
+            return managed.size();
+        }
+    }
+
+    public long getManagedConfigurationBytes() {
+        return estimateManaged().getTotal();
+    }
+
+    public Map<String, Long> getManagedConfigurationBytesByElement() {
+        return estimateManaged().getByElement();
+    }
+
+    /**
+     * Estimate the managed configurations, starting over if one changes under the walk.
+     * After {@link #ESTIMATE_ATTEMPTS} failed walks the partial estimate is returned.
+     */
+    private ConfigTreeSizeEstimator estimateManaged() {
+        final List<ConfigTree> configs = managed();
+        for (int attempt = 1; ; attempt++) {
+            final ConfigTreeSizeEstimator estimator = new ConfigTreeSizeEstimator();
+            try {
+                for (ConfigTree config : configs)
+                    estimator.add(config);
+                return estimator;
+            } catch (final RuntimeException re) {
+                if (attempt == ESTIMATE_ATTEMPTS) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Managed configurations changed while being estimated, returning a partial estimate", re);
+                    return estimator;
+                }
+            }
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            counts[i].reset();
+            nanos[i].reset();
+            maxNanos[i].reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigTreeStatistics[fromInputStream=" + count(FROM_INPUT_STREAM) + "/" + averageMillis(FROM_INPUT_STREAM)
+            + "ms, fromXml=" + count(FROM_XML) + "/" + averageMillis(FROM_XML)
+            + "ms, toXml=" + count(TO_XML) + "/" + averageMillis(TO_XML)
+            + "ms, cloneObj=" + count(CLONE_OBJ) + "/" + averageMillis(CLONE_OBJ)
+            + "ms, managedConfigurations=" + getManagedConfigurationCount() + "]";
+    }
+}
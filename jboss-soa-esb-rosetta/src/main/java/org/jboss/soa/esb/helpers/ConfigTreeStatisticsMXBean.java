@@ -0,0 +1,57 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ConfigTreeStatistics}.
+ */
+public interface ConfigTreeStatisticsMXBean {
+
+    long getFromInputStreamCount();
+
+    double getFromInputStreamAverageMillis();
+
+    double getFromInputStreamMaxMillis();
+
+    long getFromXmlCount();
+
+    double getFromXmlAverageMillis();
+
+    double getFromXmlMaxMillis();
+
+    long getToXmlCount();
+
+    double getToXmlAverageMillis();
+
+    double getToXmlMaxMillis();
+
+    long getCloneObjCount();
+
+    double getCloneObjAverageMillis();
+
+    double getCloneObjMaxMillis();
+
+    /**
+     * @return int - the number of configurations of registered managed instances
+     */
+    int getManagedConfigurationCount();
+
+    /**
+     * Best effort: the configurations may be changing while they are walked.
+     *
+     * @return long - estimated heap held by the configurations of registered managed instances
+     */
+    long getManagedConfigurationBytes();
+
+    /**
+     * Best effort, like {@link #getManagedConfigurationBytes()}.
+     *
+     * @return Map - estimated heap held by those configurations by element name, largest first
+     */
+    Map<String, Long> getManagedConfigurationBytesByElement();
+
+    /**
+     * Reset the timing counters.
+     */
+    void reset();
+}
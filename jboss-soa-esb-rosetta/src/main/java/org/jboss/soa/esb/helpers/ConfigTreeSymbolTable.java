@@ -0,0 +1,209 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Symbol table used to share String instances between {@link ConfigTree} nodes.
+ * <p/>
+ * Element names and attribute names are always pooled.  Attribute values and
+ * whitespace only text are pooled when they are short, which covers the class
+ * names, flags and indentation repeated throughout deployment descriptors without
+ * holding on to large unique values.  Sharing instances reduces the retained heap
+ * of the trees and lets name comparisons succeed on the identity check.
+ * <p/>
+ * A table may be reused for several documents to share symbols between them.  A
+ * table is only thread safe when constructed as a concurrent table, which lets
+ * parsers running in parallel share it.
+ */
+public class ConfigTreeSymbolTable {
+
+    /**
+     * Values longer than this are not pooled.
+     */
+    public static final int MAX_POOLED_VALUE_LENGTH = 64;
+
+    /**
+     * Symbols every table starts with.
+     */
+    private static final String[] COMMON_SYMBOLS = {
+        "jbossesb", "providers", "services", "service", "listeners", "listener", "actions", "action",
+        "property", "bus", "bus-provider", "name", "value", "class", "category", "description",
+        "busid", "busidref", "is-gateway", "mep", "true", "false", "OneWay", "RequestResponse"
+    };
+
+    private final Map<String, String> symbols;
+
+    /**
+     * The symbols when the table is concurrent, null otherwise.
+     */
+    private final ConcurrentMap<String, String> concurrentSymbols;
+
+    private long requests;
+
+    private long hits;
+
+    private long bytesSaved;
+
+    /**
+     * Counters of a concurrent table, null otherwise.
+     */
+    private final LongAdder concurrentRequests;
+
+    private final LongAdder concurrentHits;
+
+    private final LongAdder concurrentBytesSaved;
+
+    public ConfigTreeSymbolTable() {
+        this(false);
+    }
+
+    /**
+     * @param concurrent boolean - true for a table that may be shared between threads
+     */
+    public ConfigTreeSymbolTable(final boolean concurrent) {
+        if (concurrent) {
+            concurrentSymbols = new ConcurrentHashMap<String, String>(1024);
+            symbols = concurrentSymbols;
+            concurrentRequests = new LongAdder();
+            concurrentHits = new LongAdder();
+            concurrentBytesSaved = new LongAdder();
+        } else {
+            concurrentSymbols = null;
+            symbols = new HashMap<String, String>(256);
+            concurrentRequests = null;
+            concurrentHits = null;
+            concurrentBytesSaved = null;
+        }
+        for (String symbol : COMMON_SYMBOLS) {
+            symbols.put(symbol, symbol);
+        }
+    }
+
+    /**
+     * @return boolean - true if the table may be shared between threads
+     */
+    public boolean isConcurrent() {
+        return null != concurrentSymbols;
+    }
+
+    /**
+     * Pool an element or attribute name.
+     *
+     * @param name String - the name as read from the source
+     * @return String - the shared instance equal to the name
+     */
+    public String name(final String name) {
+        return (null == name) ? null : intern(name);
+    }
+
+    /**
+     * Pool an attribute value, if it is short enough.
+     *
+     * @param value String - the value as read from the source
+     * @return String - the shared instance equal to the value, or the value itself
+     */
+    public String value(final String value) {
+        return (null == value || value.length() > MAX_POOLED_VALUE_LENGTH) ? value : intern(value);
+    }
+
+    /**
+     * Pool a text node, if it is short and only contains whitespace.
+     *
+     * @param text String - the text as read from the source
+     * @return String - the shared instance equal to the text, or the text itself
+     */
+    public String text(final String text) {
+        if (null == text || text.length() > MAX_POOLED_VALUE_LENGTH) {
+            return text;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return text;
+            }
+        }
+        return intern(text);
+    }
+
+    private String intern(final String candidate) {
+        if (null != concurrentSymbols) {
+            return internConcurrent(candidate);
+        }
+        requests++;
+        final String symbol = symbols.get(candidate);
+        if (null == symbol) {
+            symbols.put(candidate, candidate);
+            return candidate;
+        }
+        hits++;
+        if (symbol != candidate) {
+            bytesSaved += estimateSize(candidate);
+        }
+        return symbol;
+    }
+
+    private String internConcurrent(final String candidate) {
+        concurrentRequests.increment();
+        // get first, hits are far more common than misses once the table is warm
+        String symbol = concurrentSymbols.get(candidate);
+        if (null == symbol) {
+            symbol = concurrentSymbols.putIfAbsent(candidate, candidate);
+            if (null == symbol) {
+                return candidate;
+            }
+        }
+        concurrentHits.increment();
+        if (symbol != candidate) {
+            concurrentBytesSaved.add(estimateSize(candidate));
+        }
+        return symbol;
+    }
+
+    /**
+     * @return int - the number of distinct symbols held by the table
+     */
+    public int size() {
+        return symbols.size();
+    }
+
+    /**
+     * @return long - the number of lookups made against the table
+     */
+    public long getRequestCount() {
+        return (null == concurrentRequests) ? requests : concurrentRequests.sum();
+    }
+
+    /**
+     * @return long - the number of lookups answered with an existing symbol
+     */
+    public long getHitCount() {
+        return (null == concurrentHits) ? hits : concurrentHits.sum();
+    }
+
+    /**
+     * Estimated heap saved by returning a pooled symbol instead of keeping a
+     * separate copy; lookups that already had the pooled instance do not count.
+     *
+     * @return long - estimated number of bytes saved
+     */
+    public long getBytesSaved() {
+        return (null == concurrentBytesSaved) ? bytesSaved : concurrentBytesSaved.sum();
+    }
+
+    /**
+     * Estimated retained size of a String: object header and fields plus its
+     * UTF-16 character array, both rounded up to 8 bytes.
+     */
+    static long estimateSize(final String value) {
+        return 24 + ((16 + 2L * value.length() + 7) & ~7L);
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigTreeSymbolTable[symbols=" + size() + ", requests=" + getRequestCount()
+            + ", hits=" + getHitCount() + ", bytesSaved=" + getBytesSaved() + "]";
+    }
+}
@@ -0,0 +1,39 @@
+package org.jboss.soa.esb.helpers;
+
+/**
+ * Callback interface for walking a {@link ConfigTree} in document order, see
+ * {@link ConfigTree#accept(ConfigTreeVisitor)}.
+ * <p/>
+ * Each element is reported by {@link #enter(ConfigTree)}, followed by its text and
+ * element children, followed by {@link #leave(ConfigTree)}.  The walk itself creates
+ * no objects, so validators, serializers and comparisons can traverse large trees
+ * without producing garbage.
+ * <p/>
+ * A visitor must not add or remove children of the nodes being walked.
+ */
+public interface ConfigTreeVisitor {
+
+    /**
+     * Called when the walk reaches an element, before any of its children.
+     *
+     * @param node ConfigTree - the element
+     * @return boolean - true to walk the children of the element, false to skip them
+     */
+    boolean enter(ConfigTree node);
+
+    /**
+     * Called for each text segment of an element, in document order with its element children.
+     *
+     * @param parent ConfigTree - the element holding the text
+     * @param text   String - the text segment
+     */
+    void text(ConfigTree parent, String text);
+
+    /**
+     * Called when the walk leaves an element, after its children; also called when
+     * {@link #enter(ConfigTree)} skipped them.
+     *
+     * @param node ConfigTree - the element
+     */
+    void leave(ConfigTree node);
+}
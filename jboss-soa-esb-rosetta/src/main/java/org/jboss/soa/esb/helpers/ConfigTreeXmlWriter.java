@@ -0,0 +1,138 @@
+package org.jboss.soa.esb.helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Streams the 'standard' xml representation of a {@link ConfigTree} to a Writer.
+ * <p/>
+ * The output matches what the DOM/Transformer based rendering used to produce:
+ * no xml declaration, no indentation, namespace declarations ahead of the other
+ * attributes, attributes ordered by name, empty elements collapsed and characters
+ * outside the BMP or not representable in the target encoding written as
+ * character references.
+ */
+final class ConfigTreeXmlWriter {
+
+    private static final Comparator<String> ATTRIBUTE_ORDER = new Comparator<String>() {
+        public int compare(final String first, final String second) {
+            final boolean firstDecl = isNamespaceDeclaration(first);
+            if (firstDecl != isNamespaceDeclaration(second)) {
+                return firstDecl ? -1 : 1;
+            }
+            return first.compareTo(second);
+        }
+    };
+
+    private final Writer writer;
+
+    private final CharsetEncoder encoder;
+
+    /**
+     * @param writer  Writer - destination of the xml text
+     * @param charset Charset - encoding used downstream of the writer, null if every character can be written
+     */
+    ConfigTreeXmlWriter(final Writer writer, final Charset charset) {
+        this.writer = writer;
+        this.encoder = (null == charset || "UTF-8".equals(charset.name())) ? null : charset.newEncoder();
+    }
+
+    void write(final ConfigTree tree) throws IOException {
+        final String name = tree.getName();
+        writer.write('<');
+        writer.write(name);
+
+        final int attributeCount = tree.attributeCount();
+        if (attributeCount > 0) {
+            final String[] names = tree.getAttributeNames().toArray(new String[attributeCount]);
+            if (attributeCount > 1) {
+                Arrays.sort(names, ATTRIBUTE_ORDER);
+            }
+            for (String attribute : names) {
+                writer.write(' ');
+                writer.write(attribute);
+                writer.write("=\"");
+                escape(tree.getAttribute(attribute), true);
+                writer.write('"');
+            }
+        }
+
+        final int childCount = tree.childCount();
+        if (0 == childCount) {
+            writer.write("/>");
+            return;
+        }
+        writer.write('>');
+        for (int i = 0; i < childCount; i++) {
+            final Object child = tree.childAt(i);
+            if (child instanceof ConfigTree) {
+                write((ConfigTree) child);
+            } else {
+                escape(child.toString(), false);
+            }
+        }
+        writer.write("</");
+        writer.write(name);
+        writer.write('>');
+    }
+
+    private void escape(final String value, final boolean attribute) throws IOException {
+        final int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char ch = value.charAt(i);
+            final String replacement;
+            switch (ch) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = attribute ? "&quot;" : null;
+                    break;
+                case '\n':
+                    replacement = attribute ? "&#10;" : null;
+                    break;
+                case '\t':
+                    replacement = attribute ? "&#9;" : null;
+                    break;
+                case '\r':
+                    replacement = "&#13;";
+                    break;
+                default:
+                    replacement = (ch < 0x80 || canEncode(ch)) ? null : characterReference(value, i);
+                    break;
+            }
+            if (null != replacement) {
+                writer.write(value, start, i - start);
+                writer.write(replacement);
+                if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        writer.write(value, start, length - start);
+    }
+
+    private boolean canEncode(final char ch) {
+        return !Character.isSurrogate(ch) && ((null == encoder) || encoder.canEncode(ch));
+    }
+
+    private static boolean isNamespaceDeclaration(final String attribute) {
+        return attribute.startsWith("xmlns") && (attribute.length() == 5 || attribute.charAt(5) == ':');
+    }
+
+    private static String characterReference(final String value, final int index) {
+        return "&#" + value.codePointAt(index) + ';';
+    }
+}
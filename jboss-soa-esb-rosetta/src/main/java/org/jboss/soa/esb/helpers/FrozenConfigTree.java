@@ -0,0 +1,537 @@
+package org.jboss.soa.esb.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read only snapshot of a {@link ConfigTree}, as returned by {@link ConfigTree#freeze()}.
+ * <p/>
+ * Attributes are held as a flat array of alternating names and values and children
+ * as a flat array of FrozenConfigTree and String nodes, in document order; the name,
+ * parent and text flag are the fields inherited from ConfigTree, whose other fields
+ * stay null.  Nodes with many element children build a copy of them sorted by name on
+ * their first lookup, so that lookups are a binary search.  The content is never
+ * changed, so a snapshot may be shared between threads without locking or cloning;
+ * every mutator throws UnsupportedOperationException.  The sorted copy and the child
+ * list views are built on first use from that content; a race at most builds an
+ * equal one twice, and like the caches of ConfigTree they are not counted by
+ * estimateOwnSize().
+ */
+final class FrozenConfigTree extends ConfigTree {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Nodes with more element children than this get a name sorted lookup array.
+     */
+    private static final int INDEX_THRESHOLD = 8;
+
+    private static final String[] NO_STRINGS = new String[0];
+
+    private static final Object[] NO_OBJECTS = new Object[0];
+
+    private static final ConfigTree[] NO_TREES = new ConfigTree[0];
+
+    private static final Comparator<ConfigTree> NAME_ORDER = new Comparator<ConfigTree>() {
+        public int compare(final ConfigTree first, final ConfigTree second) {
+            return first.getName().compareTo(second.getName());
+        }
+    };
+
+    /**
+     * Alternating attribute names and values.
+     */
+    private final String[] _attrs;
+
+    /**
+     * FrozenConfigTree and String children, in document order.
+     */
+    private final Object[] _kids;
+
+    /**
+     * Built on the first lookup by name in a large node, or the first child list view.
+     */
+    private transient volatile Lookup _lookup;
+
+    private FrozenConfigTree(final ConfigTree source, final FrozenConfigTree dad) {
+        super(source.getName(), dad, source.isPureText());
+
+        final int attributeCount = source.attributeCount();
+        if (0 == attributeCount) {
+            _attrs = NO_STRINGS;
+        } else {
+            _attrs = new String[attributeCount * 2];
+            int pos = 0;
+            for (String name : source.getAttributeNames()) {
+                _attrs[pos++] = name;
+                _attrs[pos++] = source.getAttribute(name);
+            }
+        }
+
+        final int childCount = source.childCount();
+        if (0 == childCount) {
+            _kids = NO_OBJECTS;
+            return;
+        }
+        _kids = new Object[childCount];
+        for (int i = 0; i < childCount; i++) {
+            final Object child = source.childAt(i);
+            if (child instanceof ConfigTree) {
+                _kids[i] = new FrozenConfigTree((ConfigTree) child, this);
+            } else {
+                _kids[i] = child.toString();
+            }
+        }
+    }
+
+    private FrozenConfigTree(final ConfigTree.Builder.Node source, final FrozenConfigTree dad) {
+        super(source._name, dad, source._pureText);
+        _attrs = (0 == source._attributeLength) ? NO_STRINGS : Arrays.copyOf(source._attributes, source._attributeLength);
+        if (0 == source._childCount) {
+            _kids = NO_OBJECTS;
+            return;
+        }
+        _kids = new Object[source._childCount];
+        for (int i = 0; i < _kids.length; i++) {
+            final Object child = source._children[i];
+            if (child instanceof ConfigTree.Builder.Node) {
+                _kids[i] = new FrozenConfigTree((ConfigTree.Builder.Node) child, this);
+            } else {
+                _kids[i] = child;
+            }
+        }
+    }
+
+    private static ConfigTree[] treesOf(final Object[] kids) {
+        int treeCount = 0;
+        for (Object child : kids) {
+            if (child instanceof ConfigTree) {
+                treeCount++;
+            }
+        }
+        if (0 == treeCount) {
+            return NO_TREES;
+        }
+        final ConfigTree[] trees = new ConfigTree[treeCount];
+        treeCount = 0;
+        for (Object child : kids) {
+            if (child instanceof ConfigTree) {
+                trees[treeCount++] = (ConfigTree) child;
+            }
+        }
+        return trees;
+    }
+
+    /**
+     * @return ConfigTree[] - the element children sorted by name, null for small nodes
+     */
+    private ConfigTree[] byName() {
+        return (_kids.length <= INDEX_THRESHOLD) ? null : lookup().byName;
+    }
+
+    private Lookup lookup() {
+        Lookup lookup = _lookup;
+        if (null == lookup) {
+            ConfigTree[] byName = (_kids.length <= INDEX_THRESHOLD) ? null : treesOf(_kids);
+            if (null != byName && byName.length <= INDEX_THRESHOLD) {
+                byName = null;
+            } else if (null != byName) {
+                Arrays.sort(byName, NAME_ORDER);
+            }
+            lookup = new Lookup(byName);
+            _lookup = lookup;
+        }
+        return lookup;
+    }
+
+    /**
+     * Take a snapshot of the subtree rooted at the supplied node.
+     *
+     * @param source ConfigTree - the root of the snapshot
+     * @return ConfigTree - the frozen copy, detached from any parent
+     */
+    static ConfigTree freeze(final ConfigTree source) {
+        return new FrozenConfigTree(source, null);
+    }
+
+    /**
+     * Take a snapshot of the tree recorded by a builder.
+     *
+     * @param source ConfigTree.Builder.Node - the root recorded by the builder
+     * @return ConfigTree - the frozen tree, detached from any parent
+     */
+    static ConfigTree freeze(final ConfigTree.Builder.Node source) {
+        return new FrozenConfigTree(source, null);
+    }
+
+    @Override
+    public ConfigTree freeze() {
+        return this;
+    }
+
+    @Override
+    public void setName(final String name) {
+        throw readOnly();
+    }
+
+    @Override
+    public String setAttribute(final String name, final String value) {
+        throw readOnly();
+    }
+
+    @Override
+    public int attributeCount() {
+        return _attrs.length >> 1;
+    }
+
+    @Override
+    public String getAttribute(final String name) {
+        for (int i = 0; i < _attrs.length; i += 2) {
+            if (_attrs[i].equals(name)) {
+                return _attrs[i + 1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getAttribute(final String name, final String defaultValue) {
+        final String ret = getAttribute(name);
+        return (ret != null ? ret : defaultValue);
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        final Set<String> names = new LinkedHashSet<String>(_attrs.length);
+        for (int i = 0; i < _attrs.length; i += 2) {
+            names.add(_attrs[i]);
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    @Override
+    public List<KeyValuePair> attributesAsList() {
+        final List<KeyValuePair> oRet = new ArrayList<KeyValuePair>(_attrs.length >> 1);
+        for (int i = 0; i < _attrs.length; i += 2) {
+            oRet.add(new KeyValuePair(_attrs[i], _attrs[i + 1]));
+        }
+        return oRet;
+    }
+
+    @Override
+    public List<KeyValuePair> childPropertyList() {
+        final List<KeyValuePair> oRet = new ArrayList<KeyValuePair>();
+        final ConfigTree[] byName = byName();
+        final int start = firstNamed(byName, "property");
+        final int end = endNamed(byName, "property", start);
+        for (int i = start; i < end; i++) {
+            final ConfigTree current = named(byName, i, "property");
+            if (null == current) {
+                continue;
+            }
+            final String name = current.getAttribute("name");
+            if (null != name) {
+                oRet.add(new KeyValuePair(name, current.getAttribute("value")));
+            }
+        }
+        return oRet;
+    }
+
+    @Override
+    public String getWholeText() {
+        StringBuilder sb = null;
+        String single = null;
+        for (Object child : _kids) {
+            if (!(child instanceof String)) {
+                continue;
+            }
+            if (null == single) {
+                single = (String) child;
+            } else {
+                if (null == sb) {
+                    sb = new StringBuilder(single);
+                }
+                sb.append((String) child);
+            }
+        }
+        return (null != sb) ? sb.toString() : (null != single) ? single : "";
+    }
+
+    @Override
+    public String getFirstTextChild(final String name) {
+        if (null == name) {
+            throw new IllegalArgumentException();
+        }
+        final ConfigTree[] byName = byName();
+        final int start = firstNamed(byName, name);
+        final int end = endNamed(byName, name, start);
+        for (int i = start; i < end; i++) {
+            final ConfigTree tree = named(byName, i, name);
+            if (null != tree && tree.isPureText()) {
+                return tree.getWholeText();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String[] getTextChildren(final String name) {
+        if (null == name) {
+            throw new IllegalArgumentException();
+        }
+        final ConfigTree[] byName = byName();
+        final int start = firstNamed(byName, name);
+        final int end = endNamed(byName, name, start);
+        final List<String> oRet = new ArrayList<String>(end - start);
+        for (int i = start; i < end; i++) {
+            final ConfigTree tree = named(byName, i, name);
+            if (null != tree && tree.isPureText()) {
+                oRet.add(tree.getWholeText());
+            }
+        }
+        return oRet.toArray(new String[oRet.size()]);
+    }
+
+    @Override
+    public void addTextChild(final String value) {
+        throw readOnly();
+    }
+
+    @Override
+    public ConfigTree[] getAllChildren() {
+        return treesOf(_kids);
+    }
+
+    @Override
+    public ConfigTree[] getChildren(final String name) {
+        if (null == name) {
+            throw new IllegalArgumentException();
+        }
+        final ConfigTree[] byName = byName();
+        final int start = firstNamed(byName, name);
+        final int end = endNamed(byName, name, start);
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (null != named(byName, i, name)) {
+                count++;
+            }
+        }
+        final ConfigTree[] oRet = new ConfigTree[count];
+        count = 0;
+        for (int i = start; i < end; i++) {
+            final ConfigTree tree = named(byName, i, name);
+            if (null != tree) {
+                oRet[count++] = tree;
+            }
+        }
+        return oRet;
+    }
+
+    @Override
+    public List<ConfigTree> children() {
+        final Lookup lookup = lookup();
+        ConfigTreeChildList list = lookup.treeList;
+        if (null == list) {
+            final ConfigTree[] trees = treesOf(_kids);
+            list = (0 == trees.length) ? ConfigTreeChildList.EMPTY : new ConfigTreeChildList(trees);
+            lookup.treeList = list;
+        }
+        return list;
+    }
+
+    @Override
+    public List<ConfigTree> children(final String name) {
+        if (null == name) {
+            throw new IllegalArgumentException();
+        }
+        final Lookup lookup = lookup();
+        Map<String, ConfigTreeChildList> named = lookup.namedLists;
+        ConfigTreeChildList list = (null == named) ? null : named.get(name);
+        if (null != list) {
+            return list;
+        }
+        if (null == getFirstChild(name)) {
+            return ConfigTreeChildList.EMPTY;
+        }
+        if (null == named) {
+            named = new ConcurrentHashMap<String, ConfigTreeChildList>(4);
+            lookup.namedLists = named;
+        }
+        list = new ConfigTreeChildList(getChildren(name));
+        named.put(name, list);
+        return list;
+    }
+
+    @Override
+    public ConfigTree getFirstChild(final String name) {
+        if (null == name) {
+            throw new IllegalArgumentException();
+        }
+        final ConfigTree[] byName = byName();
+        final int start = firstNamed(byName, name);
+        return (start < endNamed(byName, name, start)) ? named(byName, start, name) : null;
+    }
+
+    @Override
+    public void removeAllChildren() {
+        throw readOnly();
+    }
+
+    @Override
+    public void removeChildrenByName(final String name) {
+        throw readOnly();
+    }
+
+    @Override
+    public int childCount() {
+        return _kids.length;
+    }
+
+    @Override
+    Object childAt(final int index) {
+        return _kids[index];
+    }
+
+    @Override
+    long estimateOwnSize() {
+        long size = ShallowSize.NODE;
+        if (NO_STRINGS != _attrs) {
+            size += ConfigTreeSizeEstimator.arraySize(_attrs.length, ConfigTreeSizeEstimator.REFERENCE);
+        }
+        if (NO_OBJECTS != _kids) {
+            size += ConfigTreeSizeEstimator.arraySize(_kids.length, ConfigTreeSizeEstimator.REFERENCE);
+        }
+        return size;
+    }
+
+    /**
+     * @return ConfigTree - a mutable deep copy of this snapshot
+     */
+    @Override
+    public ConfigTree cloneObj() {
+        final long start = System.nanoTime();
+        try {
+            return thaw(null);
+        } finally {
+            ConfigTreeStatistics.record(ConfigTreeStatistics.CLONE_OBJ, start);
+        }
+    }
+
+    private ConfigTree thaw(final ConfigTree dad) {
+        final ConfigTree oRet = (null == dad) ? new ConfigTree(getName()) : dad.appendChild(getName());
+        for (int i = 0; i < _attrs.length; i += 2) {
+            oRet.putAttribute(_attrs[i], _attrs[i + 1]);
+        }
+        for (Object child : _kids) {
+            if (child instanceof FrozenConfigTree) {
+                ((FrozenConfigTree) child).thaw(oRet);
+            } else {
+                oRet.appendText((String) child);
+            }
+        }
+        return oRet;
+    }
+
+    @Override
+    protected void copyFrom(final ConfigTree other) {
+        throw readOnly();
+    }
+
+    /**
+     * The children with a given name are either scanned in document order from
+     * _kids (small nodes) or found as a contiguous run in byName, so loops over
+     * [firstNamed, endNamed) must go through named(), which skips the other children.
+     *
+     * @return ConfigTree - the element child at that position if it has that name, else null
+     */
+    private ConfigTree named(final ConfigTree[] byName, final int index, final String name) {
+        final Object child = (null == byName) ? _kids[index] : byName[index];
+        if (child instanceof ConfigTree && name.equals(((ConfigTree) child).getName())) {
+            return (ConfigTree) child;
+        }
+        return null;
+    }
+
+    private int firstNamed(final ConfigTree[] byName, final String name) {
+        if (null == byName) {
+            for (int i = 0; i < _kids.length; i++) {
+                if (null != named(null, i, name)) {
+                    return i;
+                }
+            }
+            return _kids.length;
+        }
+        int low = 0;
+        int high = byName.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (byName[mid].getName().compareTo(name) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int endNamed(final ConfigTree[] byName, final String name, final int start) {
+        if (null == byName) {
+            // small nodes: one past the last child with that name, the range may hold other children
+            int end = start;
+            for (int i = start; i < _kids.length; i++) {
+                if (null != named(null, i, name)) {
+                    end = i + 1;
+                }
+            }
+            return end;
+        }
+        int end = start;
+        while (end < byName.length && name.equals(byName[end].getName())) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Structures derived from _kids.  A race at most builds an equal one twice.
+     */
+    private static final class Lookup {
+        /**
+         * The element children sorted by name (stable), null for small nodes, which are
+         * scanned in document order instead.
+         */
+        final ConfigTree[] byName;
+
+        /**
+         * View of the element children, built on first use.
+         */
+        volatile ConfigTreeChildList treeList;
+
+        /**
+         * Views of the element children by name, built on first use.
+         */
+        volatile Map<String, ConfigTreeChildList> namedLists;
+
+        Lookup(final ConfigTree[] byName) {
+            this.byName = byName;
+        }
+    }
+
+    /**
+     * Computed on first use.
+     */
+    private static final class ShallowSize {
+        static final long NODE = ConfigTreeSizeEstimator.shallowSize(FrozenConfigTree.class);
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("ConfigTree snapshot is read only");
+    }
+}
@@ -0,0 +1,451 @@
+package org.jboss.soa.esb.helpers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * Memory mapped document whose subtrees at a given depth are parsed on demand.
+ * <p/>
+ * Loading makes a quick byte level scan of the document that records where each
+ * element at the lazy depth starts and ends, then parses a skeleton of the document
+ * in which every one of those elements is an empty placeholder.  The placeholders
+ * become stub nodes that know their name and whether they hold child elements; the
+ * rest of a stub is parsed from its bytes the first time its attributes or children
+ * are touched.
+ * <p/>
+ * Parsed subtrees that were never modified are released again when the JVM runs low
+ * on memory, detected through a softly referenced sentinel, starting with the ones
+ * touched least recently.  They are parsed again on their next touch, as new nodes.
+ * Nodes of a released subtree that a caller still references are cut from the tree:
+ * they can still be read, but any change to them throws IllegalStateException rather
+ * than being silently lost.  Any change below a stub pins it for good.
+ * <p/>
+ * The mapped file must not change while the tree is in use.  Like any mutable
+ * ConfigTree, a lazy tree must not be used by several threads without external
+ * synchronisation; freeze() it to share it.
+ */
+final class LazyConfigTreeSource {
+
+    private static final Logger logger = Logger.getLogger(LazyConfigTreeSource.class);
+
+    /**
+     * Name of the placeholder elements of the skeleton; every element at the lazy
+     * depth is replaced, so it cannot clash with a real element.
+     */
+    private static final String PLACEHOLDER = "lazy-subtree";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ByteBuffer data;
+
+    private final String encoding;
+
+    private final Charset charset;
+
+    private final ConfigTreeSymbolTable symbols = new ConfigTreeSymbolTable();
+
+    /**
+     * Parsed, unpinned subtrees.  Weak so that detached or garbage nodes drop out.
+     */
+    private final Map<ConfigTree, Boolean> materialised = new WeakHashMap<ConfigTree, Boolean>();
+
+    private SoftReference<Object> pressure = new SoftReference<Object>(new Object());
+
+    private long clock;
+
+    private LazyConfigTreeSource(final ByteBuffer data, final Charset charset) {
+        this.data = data;
+        this.charset = charset;
+        this.encoding = charset.name();
+    }
+
+    /**
+     * Load a document lazily, falling back to a full parse for documents the scan
+     * cannot handle: encodings that are not ASCII compatible and documents with a DTD,
+     * whose entities a subtree cannot be parsed without.
+     *
+     * @param file      File - the document
+     * @param lazyDepth int - depth of the lazily parsed elements, the root being at depth 0
+     * @return ConfigTree - the root of the document
+     * @throws SAXException - if xml format is invalid
+     * @throws IOException  - if an input/output error occurs
+     */
+    static ConfigTree load(final File file, final int lazyDepth) throws SAXException, IOException {
+        if (lazyDepth < 1)
+            throw new IllegalArgumentException("The root element cannot be lazy");
+        final ByteBuffer data;
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = input.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+
+        final Charset charset = detectCharset(data);
+        final Scan scan = (null == charset) ? null : scan(data, lazyDepth);
+        if (null == scan) {
+            if (logger.isDebugEnabled())
+                logger.debug("Parsing '" + file + "' eagerly, its encoding or DTD rule out lazy subtrees");
+            return StaxConfigTreeBuilder.build(new ByteBufferInputStream(data.duplicate()), new ConfigTreeSymbolTable());
+        }
+        return new LazyConfigTreeSource(data, charset).build(scan, lazyDepth);
+    }
+
+    private ConfigTree build(final Scan scan, final int lazyDepth) throws SAXException, IOException {
+        final ByteArrayOutputStream skeleton = new ByteArrayOutputStream(64 + scan.count * 16);
+        final byte[] placeholder = ("<" + PLACEHOLDER + "/>").getBytes(ASCII);
+        final byte[] chunk = new byte[8192];
+        int position = 0;
+        for (int i = 0; i < scan.count; i++) {
+            copy(position, scan.starts[i], skeleton, chunk);
+            skeleton.write(placeholder, 0, placeholder.length);
+            position = scan.ends[i];
+        }
+        copy(position, data.limit(), skeleton, chunk);
+
+        final ConfigTree root = StaxConfigTreeBuilder.build(new ByteArrayInputStream(skeleton.toByteArray()), symbols);
+        final int[] next = new int[1];
+        attach(root, 0, lazyDepth, scan, next);
+        if (next[0] != scan.count)
+            throw new SAXException("Lazy scan found " + scan.count + " subtrees, the skeleton holds " + next[0]);
+        return root;
+    }
+
+    private void copy(final int from, final int to, final ByteArrayOutputStream output, final byte[] chunk) {
+        final ByteBuffer source = data.duplicate();
+        source.position(from);
+        for (int remaining = to - from; remaining > 0;) {
+            final int count = Math.min(remaining, chunk.length);
+            source.get(chunk, 0, count);
+            output.write(chunk, 0, count);
+            remaining -= count;
+        }
+    }
+
+    private void attach(final ConfigTree node, final int depth, final int lazyDepth, final Scan scan, final int[] next) {
+        final int count = node.childCount();
+        for (int i = 0; i < count; i++) {
+            final Object child = node.childAt(i);
+            if (!(child instanceof ConfigTree))
+                continue;
+            final ConfigTree tree = (ConfigTree) child;
+            if (depth + 1 < lazyDepth) {
+                attach(tree, depth + 1, lazyDepth, scan, next);
+                continue;
+            }
+            final int index = next[0]++;
+            if (index >= scan.count)
+                return;
+            final String name = symbols.name(decode(scan.nameStarts[index], scan.nameEnds[index]));
+            tree.makeLazy(name, new Subtree(this, scan.starts[index], scan.ends[index]), scan.hasElements[index]);
+        }
+    }
+
+    private String decode(final int from, final int to) {
+        final byte[] bytes = new byte[to - from];
+        final ByteBuffer source = data.duplicate();
+        source.position(from);
+        source.get(bytes);
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Called by a stub on its first touch, or its first touch after being released.
+     */
+    private ConfigTree parse(final ConfigTree stub, final Subtree subtree) {
+        if (null == pressure.get())
+            releaseColdSubtrees();
+        final ByteBuffer slice = data.duplicate();
+        slice.position(subtree.start);
+        slice.limit(subtree.end);
+        final ConfigTree content;
+        try {
+            content = StaxConfigTreeBuilder.build(new ByteBufferInputStream(slice), encoding, symbols);
+        } catch (SAXException e) {
+            throw new IllegalStateException("Invalid lazy subtree '" + stub.getName() + "' at offset " + subtree.start, e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read lazy subtree '" + stub.getName() + "'", e);
+        }
+        if (!subtree.pinned)
+            materialised.put(stub, Boolean.TRUE);
+        return content;
+    }
+
+    /**
+     * Release the less recently touched half of the parsed, unpinned subtrees.
+     */
+    private void releaseColdSubtrees() {
+        pressure = new SoftReference<Object>(new Object());
+        final List<ConfigTree> stubs = new ArrayList<ConfigTree>(materialised.keySet());
+        if (stubs.isEmpty())
+            return;
+        final long[] touched = new long[stubs.size()];
+        for (int i = 0; i < touched.length; i++)
+            touched[i] = stubs.get(i).lazySubtree().lastTouch;
+        Arrays.sort(touched);
+        final long threshold = touched[(touched.length - 1) / 2];
+        int released = 0;
+        for (ConfigTree stub : stubs) {
+            if (stub.lazySubtree().lastTouch <= threshold) {
+                materialised.remove(stub);
+                stub.releaseLazy();
+                released++;
+            }
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Memory pressure, released " + released + " of " + stubs.size() + " lazy subtrees");
+    }
+
+    /**
+     * Byte range of one lazily parsed element.
+     */
+    static final class Subtree {
+        private final LazyConfigTreeSource source;
+
+        private final int start;
+
+        private final int end;
+
+        private boolean parsed;
+
+        private boolean pinned;
+
+        private long lastTouch;
+
+        Subtree(final LazyConfigTreeSource source, final int start, final int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isParsed() {
+            return parsed;
+        }
+
+        void touch() {
+            lastTouch = source.clock;
+        }
+
+        /**
+         * @return ConfigTree - the parsed element, whose content the stub adopts
+         */
+        ConfigTree parse(final ConfigTree stub) {
+            final ConfigTree content = source.parse(stub, this);
+            parsed = true;
+            lastTouch = ++source.clock;
+            return content;
+        }
+
+        /**
+         * The stub was modified, keep its content for good.
+         */
+        void pin(final ConfigTree stub) {
+            if (!pinned) {
+                pinned = true;
+                source.materialised.remove(stub);
+            }
+        }
+
+        boolean isPinned() {
+            return pinned;
+        }
+
+        void released() {
+            parsed = false;
+        }
+    }
+
+    /**
+     * Offsets recorded by the quick scan, one entry per lazy element.
+     */
+    private static final class Scan {
+        int count;
+
+        int[] starts = new int[64];
+
+        int[] ends = new int[64];
+
+        int[] nameStarts = new int[64];
+
+        int[] nameEnds = new int[64];
+
+        boolean[] hasElements = new boolean[64];
+
+        int add(final int start, final int nameStart, final int nameEnd) {
+            if (count == starts.length) {
+                final int length = count * 2;
+                starts = Arrays.copyOf(starts, length);
+                ends = Arrays.copyOf(ends, length);
+                nameStarts = Arrays.copyOf(nameStarts, length);
+                nameEnds = Arrays.copyOf(nameEnds, length);
+                hasElements = Arrays.copyOf(hasElements, length);
+            }
+            starts[count] = start;
+            nameStarts[count] = nameStart;
+            nameEnds[count] = nameEnd;
+            return count++;
+        }
+    }
+
+    /**
+     * @return Charset - the encoding of the document, null if it is not ASCII compatible
+     */
+    private static Charset detectCharset(final ByteBuffer data) {
+        final int limit = data.limit();
+        if (limit >= 2) {
+            final int b0 = data.get(0) & 0xFF;
+            final int b1 = data.get(1) & 0xFF;
+            // UTF-16 and UTF-32 byte order marks or unmarked forms
+            if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0xFF && b1 == 0xFE) || b0 == 0 || b1 == 0)
+                return null;
+        }
+        int position = (limit >= 3 && (data.get(0) & 0xFF) == 0xEF && (data.get(1) & 0xFF) == 0xBB && (data.get(2) & 0xFF) == 0xBF) ? 3 : 0;
+        if (!startsWith(data, position, "<?xml"))
+            return Charset.forName("UTF-8");
+        final int declarationEnd = indexOf(data, position, "?>");
+        if (declarationEnd < 0)
+            return null;
+        final int attribute = indexOf(data, position, "encoding");
+        if (attribute < 0 || attribute > declarationEnd)
+            return Charset.forName("UTF-8");
+        position = attribute + "encoding".length();
+        while (position < declarationEnd && data.get(position) != '"' && data.get(position) != '\'')
+            position++;
+        if (position >= declarationEnd)
+            return null;
+        final byte quote = data.get(position);
+        final int valueEnd = indexOf(data, position + 1, (quote == '"') ? "\"" : "'");
+        if (valueEnd < 0 || valueEnd > declarationEnd)
+            return null;
+        final byte[] name = new byte[valueEnd - position - 1];
+        for (int i = 0; i < name.length; i++)
+            name[i] = data.get(position + 1 + i);
+        final Charset charset;
+        try {
+            charset = Charset.forName(new String(name, ASCII));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // markup must be byte for byte the same as ASCII for the scan to find it
+        final String markup = "<a b='c' d=\"e\"/></?!-[]>";
+        return Arrays.equals(markup.getBytes(charset), markup.getBytes(ASCII)) ? charset : null;
+    }
+
+    /**
+     * Record the byte range of every element at the lazy depth.
+     *
+     * @return Scan - the ranges, null if the document has a DTD
+     */
+    private static Scan scan(final ByteBuffer data, final int lazyDepth) throws SAXException {
+        final Scan scan = new Scan();
+        final int limit = data.limit();
+        int depth = 0;
+        int open = -1;
+        int position = 0;
+        while (true) {
+            while (position < limit && data.get(position) != '<')
+                position++;
+            if (position >= limit)
+                break;
+            if (startsWith(data, position, "<?")) {
+                position = skipPast(data, position + 2, "?>");
+            } else if (startsWith(data, position, "<!--")) {
+                position = skipPast(data, position + 4, "-->");
+            } else if (startsWith(data, position, "<![CDATA[")) {
+                position = skipPast(data, position + 9, "]]>");
+            } else if (startsWith(data, position, "<!")) {
+                return null;
+            } else if (position + 1 < limit && data.get(position + 1) == '/') {
+                position = skipPast(data, position + 2, ">");
+                depth--;
+                if (depth == lazyDepth && open >= 0) {
+                    scan.ends[open] = position;
+                    open = -1;
+                }
+            } else {
+                final int nameStart = position + 1;
+                int nameEnd = nameStart;
+                while (nameEnd < limit && !isNameEnd(data.get(nameEnd)))
+                    nameEnd++;
+                final int tagEnd = endOfStartTag(data, nameEnd);
+                final boolean empty = data.get(tagEnd - 2) == '/';
+                if (depth == lazyDepth) {
+                    final int index = scan.add(position, nameStart, nameEnd);
+                    if (empty)
+                        scan.ends[index] = tagEnd;
+                    else
+                        open = index;
+                } else if (depth == lazyDepth + 1 && open >= 0) {
+                    scan.hasElements[open] = true;
+                }
+                if (!empty)
+                    depth++;
+                position = tagEnd;
+            }
+        }
+        if (depth != 0 || open >= 0)
+            throw new SAXException("Unbalanced document, " + depth + " element(s) not closed");
+        return scan;
+    }
+
+    private static boolean isNameEnd(final byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/' || b == '>';
+    }
+
+    private static int endOfStartTag(final ByteBuffer data, int position) throws SAXException {
+        final int limit = data.limit();
+        byte quote = 0;
+        for (; position < limit; position++) {
+            final byte b = data.get(position);
+            if (0 != quote) {
+                if (b == quote)
+                    quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return position + 1;
+            }
+        }
+        throw new SAXException("Unterminated start tag");
+    }
+
+    private static int skipPast(final ByteBuffer data, final int position, final String terminator) throws SAXException {
+        final int index = indexOf(data, position, terminator);
+        if (index < 0)
+            throw new SAXException("Missing '" + terminator + "'");
+        return index + terminator.length();
+    }
+
+    private static int indexOf(final ByteBuffer data, int position, final String text) {
+        final int last = data.limit() - text.length();
+        for (; position <= last; position++)
+            if (startsWith(data, position, text))
+                return position;
+        return -1;
+    }
+
+    private static boolean startsWith(final ByteBuffer data, final int position, final String text) {
+        if (position + text.length() > data.limit())
+            return false;
+        for (int i = 0; i < text.length(); i++)
+            if (data.get(position + i) != text.charAt(i))
+                return false;
+        return true;
+    }
+}
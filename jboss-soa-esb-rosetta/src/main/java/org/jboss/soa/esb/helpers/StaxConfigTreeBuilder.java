@@ -0,0 +1,168 @@
+package org.jboss.soa.esb.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Single pass StAX builder for {@link ConfigTree} instances.
+ * <p/>
+ * The builder produces exactly the same tree as parsing the document into a DOM
+ * and calling {@link ConfigTree#fromElement(org.w3c.dom.Element)}: names are the
+ * qualified names as written in the document, namespace declarations are kept as
+ * ordinary <i>xmlns</i> attributes, adjacent character data is merged into a
+ * single text child and CDATA sections, comments and processing instructions are
+ * dropped.
+ * <p/>
+ * Names, attribute values and whitespace text are pooled through the supplied
+ * {@link ConfigTreeSymbolTable}.
+ */
+final class StaxConfigTreeBuilder {
+
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private StaxConfigTreeBuilder() {
+    }
+
+    private static XMLInputFactory createFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+        // the DOM path never sees CDATA content as text, so make sure the parser reports it separately
+        if (factory.isPropertySupported(REPORT_CDATA)) {
+            factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+        }
+        return factory;
+    }
+
+    /**
+     * Build a tree from the document contained in the stream.
+     *
+     * @param input   InputStream - where to parse from
+     * @param symbols ConfigTreeSymbolTable - pool for the names and values read
+     * @return ConfigTree - the root of the document
+     * @throws SAXException - if xml format is invalid
+     * @throws IOException  - if an input/output error occurs
+     */
+    static ConfigTree build(final InputStream input, final ConfigTreeSymbolTable symbols) throws SAXException, IOException {
+        return build(input, null, symbols);
+    }
+
+    /**
+     * Build a tree from a document, or a single element of one, whose encoding is known.
+     *
+     * @param input    InputStream - where to parse from
+     * @param encoding String - the encoding of the bytes, null to detect it from the document
+     * @param symbols  ConfigTreeSymbolTable - pool for the names and values read
+     * @return ConfigTree - the root of the document
+     * @throws SAXException - if xml format is invalid
+     * @throws IOException  - if an input/output error occurs
+     */
+    static ConfigTree build(final InputStream input, final String encoding, final ConfigTreeSymbolTable symbols)
+            throws SAXException, IOException {
+        final XMLStreamReader reader;
+        try {
+            synchronized (FACTORY) {
+                reader = (null == encoding) ? FACTORY.createXMLStreamReader(input) : FACTORY.createXMLStreamReader(input, encoding);
+            }
+        } catch (final XMLStreamException xse) {
+            throw translate(xse);
+        }
+        try {
+            return build(reader, symbols);
+        } catch (final XMLStreamException xse) {
+            throw translate(xse);
+        } finally {
+            try {
+                reader.close();
+            } catch (final XMLStreamException ignore) {
+            }
+        }
+    }
+
+    private static ConfigTree build(final XMLStreamReader reader, final ConfigTreeSymbolTable symbols) throws XMLStreamException {
+        ConfigTree root = null;
+        ConfigTree current = null;
+        StringBuilder text = null;
+
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    flushText(current, text, symbols);
+                    final String name = symbols.name(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+                    // appendChild skips the walk to the root of the ConfigTree(name, dad) constructor
+                    final ConfigTree tree = (null == current) ? new ConfigTree(name) : current.appendChild(name);
+                    addAttributes(tree, reader, symbols);
+                    if (null == root) {
+                        root = tree;
+                    }
+                    current = tree;
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT:
+                    flushText(current, text, symbols);
+                    current = current.getParent();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (null != current) {
+                        if (null == text) {
+                            text = new StringBuilder();
+                        }
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                default:
+                    // CDATA, comments and PIs are separate DOM nodes which fromElement ignores
+                    flushText(current, text, symbols);
+                    break;
+            }
+        }
+        return root;
+    }
+
+    private static void flushText(final ConfigTree current, final StringBuilder text, final ConfigTreeSymbolTable symbols) {
+        if (null != text && text.length() > 0) {
+            current.appendText(symbols.text(text.toString()));
+            text.setLength(0);
+        }
+    }
+
+    private static void addAttributes(final ConfigTree tree, final XMLStreamReader reader, final ConfigTreeSymbolTable symbols) {
+        // namespace declarations are attributes in a non namespace aware DOM
+        final int nsCount = reader.getNamespaceCount();
+        for (int i = 0; i < nsCount; i++) {
+            final String prefix = reader.getNamespacePrefix(i);
+            final String uri = reader.getNamespaceURI(i);
+            final String name = (null == prefix || prefix.length() == 0) ? "xmlns" : "xmlns:" + prefix;
+            tree.putAttribute(symbols.name(name), symbols.value((null == uri) ? "" : uri));
+        }
+        final int count = reader.getAttributeCount();
+        for (int i = 0; i < count; i++) {
+            tree.putAttribute(symbols.name(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i))),
+                symbols.value(reader.getAttributeValue(i)));
+        }
+    }
+
+    private static String qualifiedName(final String prefix, final String localName) {
+        return (null == prefix || prefix.length() == 0) ? localName : prefix + ':' + localName;
+    }
+
+    private static SAXException translate(final XMLStreamException xse) throws IOException {
+        final Throwable nested = (null != xse.getNestedException()) ? xse.getNestedException() : xse.getCause();
+        if (nested instanceof IOException) {
+            throw (IOException) nested;
+        }
+        return new SAXException(xse.getMessage(), xse);
+    }
+}
@@ -3,16 +3,27 @@ package org.jboss.soa.esb.listeners.lifecycle;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 import org.jboss.soa.esb.ConfigurationException;
 import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.helpers.ConfigTreeStatistics;
 
 /**
  * This class represents the lifecycle for a managed instance.
@@ -27,18 +38,23 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
     public static final String PARAM_TERMINATION_PERIOD = "terminationPeriod" ;
     
     /**
-     * The lock used for state operations.
+     * The updater used for state transitions.
      */
-    private final Lock stateLock = new ReentrantLock() ;
+    private static final AtomicReferenceFieldUpdater<AbstractManagedLifecycle, ManagedLifecycleState> STATE_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(AbstractManagedLifecycle.class, ManagedLifecycleState.class, "state") ;
+    
     /**
-     * The condition used for state changes.
+     * The state of the managed instance, read without locking and changed by compare and set.
      */
-    private final Condition stateChanged = stateLock.newCondition() ;
-    
+    private transient volatile ManagedLifecycleState state = ManagedLifecycleState.CONSTRUCTED ;
+    /**
+     * The threads parked until the state changes.
+     */
+    private transient Queue<Thread> stateWaiters = new ConcurrentLinkedQueue<Thread>() ;
     /**
-     * The state of the managed instance.
+     * The futures completed when the state changes.
      */
-    private transient ManagedLifecycleState state = ManagedLifecycleState.CONSTRUCTED ;
+    private transient Queue<StateFuture> stateFutures = new ConcurrentLinkedQueue<StateFuture>() ;
     /**
      * The maximum amount of time to wait for termination.
      */
@@ -98,6 +114,7 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
                 doInitialise() ;
                 changeState(ManagedLifecycleState.INITIALISED) ;
                 lifecycleController.registerMBean();
+                ConfigTreeStatistics.register(config);
 			} catch (final ManagedLifecycleException mle) {
 				changeState(ManagedLifecycleState.DESTROYED);
 				throw mle;
@@ -195,6 +212,7 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
 		if (!ManagedLifecycleState.DESTROYED.equals(getState())) {
 			changeState(ManagedLifecycleState.DESTROYING);
 			lifecycleController.unregisterMBean();
+			ConfigTreeStatistics.unregister(config);
 			try {
 				doDestroy();
 			} catch (final ManagedLifecycleException mle) {
@@ -220,33 +238,36 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
      * @return The managed instance state.
      */
 	public ManagedLifecycleState getState() {
-		stateLock.lock();
-		try {
-			return state;
-		} finally {
-			stateLock.unlock();
-		}
+		return state;
 	}
     
     /**
      * Change the state of the managed instance.
+     * <p/>
+     * The transition is validated against the current state and applied by compare and
+     * set, so concurrent transitions from the same state cannot both succeed.
      * @param newState The new state of the managed instance.
-     * @throws ManagedLifecycleException 
+     * @throws ManagedLifecycleException if the transition is not allowed from the current state.
      */
 	protected void changeState(final ManagedLifecycleState newState) throws ManagedLifecycleException {
-        final ManagedLifecycleState origState ;
-        stateLock.lock() ;
-		try {
-			if (!state.canTransition(newState)) {
-                throw new ManagedLifecycleException("Invalid state change from " + state + " to " + newState) ;
-			}
-			origState = state;
-			state = newState;
-			stateChanged.signalAll();
-		} finally {
-			stateLock.unlock() ;
+        ManagedLifecycleState origState ;
+        do {
+            origState = state ;
+            if (!origState.canTransition(newState)) {
+                throw new ManagedLifecycleException("Invalid state change from " + origState + " to " + newState) ;
+            }
+        } while (!STATE_UPDATER.compareAndSet(this, origState, newState)) ;
+        for (Thread waiter : stateWaiters) {
+            LockSupport.unpark(waiter) ;
+        }
+        try {
+            fireStateChangedEvent(origState, newState) ;
+        } finally {
+            // completed after the listeners, which must see the new state before dependent stages run
+            if (!stateFutures.isEmpty()) {
+                completeStateFutures(newState) ;
+            }
         }
-        fireStateChangedEvent(origState, newState) ;
     }
     
     /**
@@ -304,37 +325,187 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
      * @return true if the transition occurs within the expected period, false otherwise.
      */
     private boolean waitForStateChange(final ManagedLifecycleState state, final long transitionPeriod, final boolean equality) {
-		try {
-			stateLock.lock();
-			try {
-				if (equality ^ (this.state == state)) {
-                    final long end = System.currentTimeMillis() + transitionPeriod ;
-					while (equality ^ (this.state == state)) {
-						final long delay = end - System.currentTimeMillis();
-						if (delay <= 0) {
-							break;
-						}
-                        stateChanged.await(delay, TimeUnit.MILLISECONDS) ;
-					}
-				}
-				return !(equality ^ (this.state == state));
-			} finally {
-				stateLock.unlock();
-			}
-		} catch (final InterruptedException ie) {
-			if (logger.isInfoEnabled()) {
-				logger.info("Interrupted while waiting for state change");
-			}
-            
-			stateLock.lock();
-			try {
-				return (this.state == state);
-			} finally {
-				stateLock.unlock();
-			}
+        if (!(equality ^ (this.state == state))) {
+            return true ;
+        }
+        final Thread current = Thread.currentThread() ;
+        stateWaiters.add(current) ;
+        try {
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(transitionPeriod) ;
+            // the state is checked after registering, so an unpark from changeState cannot be missed
+            while (equality ^ (this.state == state)) {
+                final long delay = end - System.nanoTime() ;
+                if (delay <= 0) {
+                    break ;
+                }
+                LockSupport.parkNanos(this, delay) ;
+                if (Thread.interrupted()) {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Interrupted while waiting for state change") ;
+                    }
+                    break ;
+                }
+            }
+            return !(equality ^ (this.state == state)) ;
+        } finally {
+            stateWaiters.remove(current) ;
         }
     }
     
+    /**
+     * Initialise the managed instance on the default asynchronous executor.
+     * @return A stage completed once the instance is initialised.
+     */
+    public CompletionStage<Void> initialiseAsync() {
+        return initialiseAsync(AsyncExecutor.EXECUTOR) ;
+    }
+    
+    /**
+     * Initialise the managed instance on the specified executor.
+     * @param executor The executor running {@link #initialise()}.
+     * @return A stage completed once the instance is initialised.
+     */
+    public CompletionStage<Void> initialiseAsync(final Executor executor) {
+        return runAsync(Operation.INITIALISE, executor) ;
+    }
+    
+    /**
+     * Start the managed instance on the default asynchronous executor.
+     * @return A stage completed once the instance is started.
+     */
+    public CompletionStage<Void> startAsync() {
+        return startAsync(AsyncExecutor.EXECUTOR) ;
+    }
+    
+    /**
+     * Start the managed instance on the specified executor.
+     * @param executor The executor running {@link #start()}.
+     * @return A stage completed once the instance is started.
+     */
+    public CompletionStage<Void> startAsync(final Executor executor) {
+        return runAsync(Operation.START, executor) ;
+    }
+    
+    /**
+     * Stop the managed instance on the default asynchronous executor.
+     * @return A stage completed once the instance is stopped.
+     */
+    public CompletionStage<Void> stopAsync() {
+        return stopAsync(AsyncExecutor.EXECUTOR) ;
+    }
+    
+    /**
+     * Stop the managed instance on the specified executor.
+     * @param executor The executor running {@link #stop()}.
+     * @return A stage completed once the instance is stopped.
+     */
+    public CompletionStage<Void> stopAsync(final Executor executor) {
+        return runAsync(Operation.STOP, executor) ;
+    }
+    
+    /**
+     * Destroy the managed instance on the default asynchronous executor.
+     * @return A stage completed once the instance is destroyed.
+     */
+    public CompletionStage<Void> destroyAsync() {
+        return destroyAsync(AsyncExecutor.EXECUTOR) ;
+    }
+    
+    /**
+     * Destroy the managed instance on the specified executor.
+     * @param executor The executor running {@link #destroy()}.
+     * @return A stage completed once the instance is destroyed.
+     */
+    public CompletionStage<Void> destroyAsync(final Executor executor) {
+        return runAsync(Operation.DESTROY, executor) ;
+    }
+    
+    /**
+     * Run a lifecycle operation on an executor.
+     * @param operation The operation.
+     * @param executor The executor.
+     * @return A stage completed with the outcome of the operation.
+     */
+    private CompletionStage<Void> runAsync(final Operation operation, final Executor executor) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>() ;
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        operation.apply(AbstractManagedLifecycle.this) ;
+                        future.complete(null) ;
+                    } catch (final Throwable th) {
+                        future.completeExceptionally(th) ;
+                    }
+                }
+            }) ;
+        } catch (final RejectedExecutionException ree) {
+            future.completeExceptionally(new ManagedLifecycleException("Executor rejected " + operation, ree)) ;
+        }
+        return future ;
+    }
+    
+    /**
+     * Get a stage completed when the managed instance is in the specified state.
+     * <p/>
+     * No thread waits for the state: the stage is completed by the thread changing the
+     * state, once the lifecycle event listeners have been notified, so dependent actions that may block should be attached with the
+     * asynchronous methods of CompletionStage.  Stages completed or cancelled by the
+     * caller are discarded on the next state change.
+     * @param state The expected state.
+     * @return A stage completed immediately if the instance is already in the state,
+     * otherwise the next time it enters it, or exceptionally if the instance is destroyed first.
+     */
+    public CompletionStage<ManagedLifecycleState> awaitState(final ManagedLifecycleState state) {
+        final ManagedLifecycleState current = this.state ;
+        if (current == state) {
+            return CompletableFuture.completedFuture(state) ;
+        }
+        final StateFuture future = new StateFuture(state) ;
+        if (current == ManagedLifecycleState.DESTROYED) {
+            future.completeExceptionally(destroyedBefore(state)) ;
+            return future ;
+        }
+        stateFutures.add(future) ;
+        // the state is checked after registering, so a completion from changeState cannot be missed
+        final ManagedLifecycleState latest = this.state ;
+        if (latest == state) {
+            future.complete(state) ;
+        } else if (latest == ManagedLifecycleState.DESTROYED) {
+            future.completeExceptionally(destroyedBefore(state)) ;
+        }
+        return future ;
+    }
+    
+    /**
+     * Complete the futures waiting for the new state.
+     * @param newState The new state of the managed instance.
+     */
+    private void completeStateFutures(final ManagedLifecycleState newState) {
+        final Iterator<StateFuture> iter = stateFutures.iterator() ;
+        while(iter.hasNext()) {
+            final StateFuture future = iter.next() ;
+            if (future.isDone()) {
+                iter.remove() ;
+            } else if (future.state == newState) {
+                iter.remove() ;
+                future.complete(newState) ;
+            } else if (newState == ManagedLifecycleState.DESTROYED) {
+                iter.remove() ;
+                future.completeExceptionally(destroyedBefore(future.state)) ;
+            }
+        }
+    }
+    
+    /**
+     * Create the failure of a future waiting for a state the instance can no longer reach.
+     * @param state The expected state.
+     * @return The failure.
+     */
+    private static ManagedLifecycleException destroyedBefore(final ManagedLifecycleState state) {
+        return new ManagedLifecycleException("Managed instance destroyed before reaching state " + state) ;
+    }
+    
     /**
      * Add a managed lifecycle event listener.
      * @param listener The listener.
@@ -374,6 +545,8 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
 	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject() ;
         state = ManagedLifecycleState.CONSTRUCTED ;
+        stateWaiters = new ConcurrentLinkedQueue<Thread>() ;
+        stateFutures = new ConcurrentLinkedQueue<StateFuture>() ;
     }
 
     /**
@@ -384,6 +557,65 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
         return config;
     }
     
+    /**
+     * A future completed when the managed instance enters a state.
+     */
+    private static final class StateFuture extends CompletableFuture<ManagedLifecycleState> {
+        /**
+         * The expected state.
+         */
+        final ManagedLifecycleState state ;
+        
+        StateFuture(final ManagedLifecycleState state) {
+            this.state = state ;
+        }
+    }
+    
+    /**
+     * The lifecycle operations run asynchronously.
+     */
+    private enum Operation {
+        INITIALISE {
+            void apply(final ManagedLifecycle instance) throws ManagedLifecycleException {
+                instance.initialise() ;
+            }
+        },
+        START {
+            void apply(final ManagedLifecycle instance) throws ManagedLifecycleException {
+                instance.start() ;
+            }
+        },
+        STOP {
+            void apply(final ManagedLifecycle instance) throws ManagedLifecycleException {
+                instance.stop() ;
+            }
+        },
+        DESTROY {
+            void apply(final ManagedLifecycle instance) throws ManagedLifecycleException {
+                instance.destroy() ;
+            }
+        };
+        
+        abstract void apply(final ManagedLifecycle instance) throws ManagedLifecycleException ;
+    }
+    
+    /**
+     * The default executor of the asynchronous operations, created on first use.  The
+     * operations may block, e.g. while a thread finishes, so the pool grows on demand
+     * and idle threads expire.
+     */
+    private static final class AsyncExecutor {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger() ;
+            
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "ManagedLifecycle-async-" + threadNumber.incrementAndGet()) ;
+                thread.setDaemon(true) ;
+                return thread ;
+            }
+        }) ;
+    }
+    
     private final class LifecycleControllerAdapter implements ManagedLifecycleAdapter {
         /**
          * Start the managed instance.
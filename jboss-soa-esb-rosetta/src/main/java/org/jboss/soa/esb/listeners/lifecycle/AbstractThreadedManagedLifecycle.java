@@ -11,17 +11,74 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigProperty;
 import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.helpers.ConfigTreeBinder;
 
 
 /**
  * This class provides threaded support for a managed instance.
+ * <p/>
+ * The thread running {@link #doRun()} is selected by the {@link #PARAM_THREAD_MODE} attribute,
+ * see {@link ManagedLifecycleThreadMode}, and is named after the service and the listener.
  */
 public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLifecycle implements Runnable {
    
 	private static final long serialVersionUID = -3416897438000324214L;
 
+    /**
+     * The thread mode attribute, one of the {@link ManagedLifecycleThreadMode} values.
+     */
+    public static final String PARAM_THREAD_MODE = "threadMode" ;
+    /**
+     * The class name of the Executor or ThreadFactory used in EXECUTOR mode.
+     */
+    public static final String PARAM_THREAD_EXECUTOR = "threadExecutor" ;
+    /**
+     * The priority of platform threads.
+     */
+    public static final String PARAM_THREAD_PRIORITY = "threadPriority" ;
+    /**
+     * The service category attribute.
+     */
+    private static final String SERVICE_CATEGORY_TAG = "service-category" ;
+    /**
+     * The service name attribute.
+     */
+    private static final String SERVICE_NAME_TAG = "service-name" ;
+
     private static final Logger logger = Logger.getLogger(AbstractThreadedManagedLifecycle.class) ;
+
+    private static final ConfigTreeBinder<AbstractThreadedManagedLifecycle> BINDER = ConfigTreeBinder.forClass(AbstractThreadedManagedLifecycle.class) ;
+    
+    /**
+     * The thread mode.
+     */
+    @ConfigProperty(name = PARAM_THREAD_MODE)
+    private ManagedLifecycleThreadMode threadMode = ManagedLifecycleThreadMode.PLATFORM ;
+    
+    /**
+     * The executor class name.
+     */
+    @ConfigProperty(name = PARAM_THREAD_EXECUTOR)
+    private String threadExecutor ;
+    
+    /**
+     * The platform thread priority.
+     */
+    @ConfigProperty(name = PARAM_THREAD_PRIORITY, min = Thread.MIN_PRIORITY, max = Thread.MAX_PRIORITY)
+    private int threadPriority = Thread.NORM_PRIORITY ;
+    
+    /**
+     * The Executor or ThreadFactory of this instance in EXECUTOR mode, created on the first
+     * start and shut down when the instance is destroyed.
+     */
+    private transient volatile Object executor ;
+    
+    /**
+     * The name of the thread running this instance.
+     */
+    private final String threadName ;
     
     /**
      * The lock used for managing the running state.
@@ -51,6 +108,42 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
      */
     protected AbstractThreadedManagedLifecycle(final ConfigTree config)throws ConfigurationException{
         super(config) ;
+        BINDER.apply(config, this) ;
+        if ((threadMode == ManagedLifecycleThreadMode.EXECUTOR) && (threadExecutor == null)) {
+            throw new ConfigurationException(PARAM_THREAD_EXECUTOR + " is required when " + PARAM_THREAD_MODE + " is " + threadMode) ;
+        }
+        threadName = createThreadName(config) ;
+        if (logger.isDebugEnabled()) {
+            logger.debug(PARAM_THREAD_MODE + " value " + threadMode + " for " + threadName) ;
+        }
+    }
+    
+    /**
+     * Create the thread name from the service and listener names.
+     * @param config The configuration associated with this instance.
+     * @return The thread name.
+     */
+    private static String createThreadName(final ConfigTree config) {
+        String category = config.getAttribute(SERVICE_CATEGORY_TAG) ;
+        String service = config.getAttribute(SERVICE_NAME_TAG) ;
+        if (service == null) {
+            for (ConfigTree current = config.getParent(); current != null; current = current.getParent()) {
+                if ("service".equals(current.getName())) {
+                    category = current.getAttribute("category") ;
+                    service = current.getAttribute("name") ;
+                    break ;
+                }
+            }
+        }
+        final String listener = config.getAttribute("name") ;
+        final StringBuilder name = new StringBuilder() ;
+        if (category != null) {
+            name.append(category).append(':') ;
+        }
+        if (service != null) {
+            name.append(service).append('/') ;
+        }
+        return name.append((listener == null) ? config.getName() : listener).toString() ;
     }
     
     /**
@@ -69,8 +162,15 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
 		} finally {
             runningLock.unlock() ;
         }
-        final Thread thread = new Thread(this) ;
-        thread.start() ;
+        try {
+            if ((threadMode == ManagedLifecycleThreadMode.EXECUTOR) && (executor == null)) {
+                executor = ManagedLifecycleThreadMode.createExecutor(threadExecutor) ;
+            }
+            threadMode.execute(this, threadName, threadPriority, executor) ;
+        } catch (final ManagedLifecycleException mle) {
+            setRunning(ManagedLifecycleThreadState.STOPPED) ;
+            throw mle ;
+        }
     }
     
     /**
@@ -113,7 +213,8 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
     }
 
     /**
-     * Handle the destroy of the managed instance.
+     * Handle the destroy of the managed instance.  The executor of an instance in EXECUTOR
+     * mode is shut down once the thread has stopped, even if doThreadedDestroy() fails.
      * 
      * @throws ManagedLifecycleException for errors while destroying.
      */
@@ -123,7 +224,15 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
             throw new ManagedLifecycleException("Thread still active") ;
         }
         
-        doThreadedDestroy() ;
+        try {
+            doThreadedDestroy() ;
+        } finally {
+            final Object current = executor ;
+            if (current != null) {
+                executor = null ;
+                ManagedLifecycleThreadMode.shutdownExecutor(current) ;
+            }
+        }
     }
     
     /**
@@ -134,6 +243,22 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
     protected void doThreadedDestroy() throws ManagedLifecycleException {
     }
     
+    /**
+     * Get the mode of the thread running this instance.
+     * @return The thread mode.
+     */
+    public ManagedLifecycleThreadMode getThreadMode() {
+        return threadMode ;
+    }
+    
+    /**
+     * Get the name of the thread running this instance.
+     * @return The thread name.
+     */
+    public String getThreadName() {
+        return threadName ;
+    }
+    
     /**
      * Is the associated thread still running?
      * @return true if the thread is still running, false otherwise.
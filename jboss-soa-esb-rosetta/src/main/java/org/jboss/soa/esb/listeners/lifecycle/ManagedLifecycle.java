@@ -1,5 +1,9 @@
 package org.jboss.soa.esb.listeners.lifecycle;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
 import org.jboss.soa.esb.helpers.ConfigTree;
 
 public interface ManagedLifecycle {
@@ -42,6 +46,127 @@ public interface ManagedLifecycle {
 	 */
 	public void destroy() throws ManagedLifecycleException;
 
+	/**
+	 * Initialise the managed instance without blocking the caller.
+	 * 
+	 * @return A stage completed once the instance is initialised, or
+	 *         exceptionally with the failure of {@link #initialise()}.
+	 *         The default implementation initialises the instance on the calling
+	 *         thread and returns a completed stage.
+	 */
+	public default CompletionStage<Void> initialiseAsync() {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			initialise();
+			future.complete(null);
+		} catch (final Throwable th) {
+			future.completeExceptionally(th);
+		}
+		return future;
+	}
+
+	/**
+	 * Start the managed instance without blocking the caller.
+	 * 
+	 * @return A stage completed once the instance is started, or
+	 *         exceptionally with the failure of {@link #start()}.
+	 *         The default implementation starts the instance on the calling
+	 *         thread and returns a completed stage.
+	 */
+	public default CompletionStage<Void> startAsync() {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			start();
+			future.complete(null);
+		} catch (final Throwable th) {
+			future.completeExceptionally(th);
+		}
+		return future;
+	}
+
+	/**
+	 * Stop the managed instance without blocking the caller.
+	 * 
+	 * @return A stage completed once the instance is stopped, or
+	 *         exceptionally with the failure of {@link #stop()}.
+	 *         The default implementation stops the instance on the calling
+	 *         thread and returns a completed stage.
+	 */
+	public default CompletionStage<Void> stopAsync() {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			stop();
+			future.complete(null);
+		} catch (final Throwable th) {
+			future.completeExceptionally(th);
+		}
+		return future;
+	}
+
+	/**
+	 * Destroy the managed instance without blocking the caller.
+	 * 
+	 * @return A stage completed once the instance is destroyed, or
+	 *         exceptionally with the failure of {@link #destroy()}.
+	 *         The default implementation destroys the instance on the calling
+	 *         thread and returns a completed stage.
+	 */
+	public default CompletionStage<Void> destroyAsync() {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			destroy();
+			future.complete(null);
+		} catch (final Throwable th) {
+			future.completeExceptionally(th);
+		}
+		return future;
+	}
+
+	/**
+	 * Get a stage completed when the managed instance is in the specified
+	 * state, without a thread waiting for it.
+	 * 
+	 * @param state
+	 *            The expected state.
+	 * @return A stage completed immediately if the instance is already in the
+	 *         state, otherwise the next time it enters it, or exceptionally if
+	 *         the instance is destroyed first. The default implementation
+	 *         registers a lifecycle event listener, removed once the stage
+	 *         is completed.
+	 */
+	public default CompletionStage<ManagedLifecycleState> awaitState(final ManagedLifecycleState state) {
+		final CompletableFuture<ManagedLifecycleState> future = new CompletableFuture<ManagedLifecycleState>();
+		final ManagedLifecycleEventListener listener = new ManagedLifecycleEventListener() {
+			public void stateChanged(final ManagedLifecycleStateEvent event) {
+				if (event.getNewState() == state) {
+					future.complete(state);
+				} else if (event.getNewState() == ManagedLifecycleState.DESTROYED) {
+					future.completeExceptionally(new ManagedLifecycleException(
+						"Managed instance destroyed before reaching state " + state));
+				}
+			}
+		};
+		addManagedLifecycleEventListener(listener);
+		// the state is checked after registering, so a transition cannot be missed
+		final ManagedLifecycleState current = getState();
+		if (current == state) {
+			future.complete(state);
+		} else if (current == ManagedLifecycleState.DESTROYED) {
+			future.completeExceptionally(new ManagedLifecycleException(
+				"Managed instance destroyed before reaching state " + state));
+		}
+		if (future.isDone()) {
+			removeManagedLifecycleEventListener(listener);
+		} else {
+			future.whenComplete(new BiConsumer<ManagedLifecycleState, Throwable>() {
+				public void accept(final ManagedLifecycleState result, final Throwable failure) {
+					removeManagedLifecycleEventListener(listener);
+				}
+			});
+		}
+		return future;
+	}
+
 	/**
 	 * Get the state of the managed instance.
 	 * 
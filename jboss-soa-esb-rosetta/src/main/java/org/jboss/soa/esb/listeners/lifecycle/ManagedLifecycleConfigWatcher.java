@@ -0,0 +1,316 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.xml.sax.SAXException;
+
+/**
+ * Reloads a deployment descriptor when it changes on disk and hands the new
+ * configuration to a {@link ManagedLifecycleReloader}.
+ * <p/>
+ * Changes are detected through a {@link WatchService} on the directory of the
+ * descriptor.  Events are debounced so that an editor writing the file in several
+ * steps triggers a single reload, and the content is hashed so that touching the
+ * file without changing it does nothing.  If the file system cannot be watched, or
+ * the watch is lost, the descriptor is polled every <i>parameterReloadSecs</i>
+ * seconds instead; polling compares the size and modification time before reading
+ * the file.
+ */
+public class ManagedLifecycleConfigWatcher implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(ManagedLifecycleConfigWatcher.class) ;
+
+    /**
+     * The name of the descriptor attribute specifying the polling period.
+     */
+    public static final String PARAM_RELOAD_SECS = "parameterReloadSecs" ;
+
+    /**
+     * The default quiet period after the last change event, in milliseconds.
+     */
+    public static final long DEFAULT_DEBOUNCE_PERIOD = 250 ;
+
+    /**
+     * The descriptor.
+     */
+    private final Path file ;
+    /**
+     * The reloader receiving each new configuration.
+     */
+    private final ManagedLifecycleReloader reloader ;
+    /**
+     * The quiet period after the last change event, in milliseconds.
+     */
+    private final long debouncePeriod ;
+    /**
+     * The fallback polling period, in milliseconds, 0 to disable polling.
+     */
+    private final long pollPeriod ;
+
+    private volatile boolean running ;
+    private volatile WatchService watchService ;
+    private Thread thread ;
+
+    /**
+     * Digest, size and modification time of the content last handed to the reloader.
+     */
+    private byte[] digest ;
+    private long size = -1 ;
+    private long lastModified = -1 ;
+
+    /**
+     * Construct the watcher, taking the polling period from the <i>parameterReloadSecs</i>
+     * attribute of the current configuration.
+     * @param file The descriptor.
+     * @param reloader The started reloader receiving each new configuration.
+     */
+    public ManagedLifecycleConfigWatcher(final Path file, final ManagedLifecycleReloader reloader) {
+        this(file, reloader, DEFAULT_DEBOUNCE_PERIOD, reloadPeriod(reloader.getConfig())) ;
+    }
+
+    /**
+     * Construct the watcher.
+     * @param file The descriptor.
+     * @param reloader The started reloader receiving each new configuration.
+     * @param debouncePeriod The quiet period after the last change event, in milliseconds.
+     * @param pollPeriod The fallback polling period, in milliseconds, 0 to disable polling.
+     */
+    public ManagedLifecycleConfigWatcher(final Path file, final ManagedLifecycleReloader reloader,
+        final long debouncePeriod, final long pollPeriod) {
+        this.file = file.toAbsolutePath() ;
+        this.reloader = reloader ;
+        this.debouncePeriod = debouncePeriod ;
+        this.pollPeriod = pollPeriod ;
+    }
+
+    private static long reloadPeriod(final ConfigTree config) {
+        final long seconds = (config == null) ? 0 : config.getLongAttribute(PARAM_RELOAD_SECS, 0) ;
+        return (seconds > 0) ? seconds * 1000 : 0 ;
+    }
+
+    /**
+     * Record the current content of the descriptor and start watching it.
+     * @throws IOException if the descriptor cannot be read.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return ;
+        }
+        final byte[] content = Files.readAllBytes(file) ;
+        digest = digest(content) ;
+        recordAttributes() ;
+
+        WatchService service = null ;
+        try {
+            service = file.getFileSystem().newWatchService() ;
+            file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY) ;
+            watchService = service ;
+        } catch (final IOException ioe) {
+            logger.warn("Unable to watch " + file + ", falling back to polling", ioe) ;
+            close(service) ;
+        } catch (final UnsupportedOperationException uoe) {
+            logger.warn("Unable to watch " + file + ", falling back to polling", uoe) ;
+            close(service) ;
+        }
+        if (watchService == null && pollPeriod <= 0) {
+            logger.warn("No " + PARAM_RELOAD_SECS + " configured, " + file + " will not be reloaded") ;
+            return ;
+        }
+        running = true ;
+        thread = new Thread(this, "ConfigWatcher-" + file.getFileName()) ;
+        thread.setDaemon(true) ;
+        thread.start() ;
+    }
+
+    /**
+     * Stop watching the descriptor.
+     */
+    public void stop() {
+        final Thread watcherThread ;
+        synchronized (this) {
+            running = false ;
+            closeWatchService() ;
+            watcherThread = thread ;
+            thread = null ;
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt() ;
+            try {
+                watcherThread.join() ;
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt() ;
+            }
+        }
+    }
+
+    /**
+     * Is the descriptor watched through a WatchService rather than polled?
+     * @return true if change events are used.
+     */
+    public boolean isWatching() {
+        return watchService != null ;
+    }
+
+    public void run() {
+        long deadline = 0 ;
+        while (running) {
+            try {
+                final WatchService service = watchService ;
+                if (service == null) {
+                    Thread.sleep(pollPeriod) ;
+                    if (running && attributesChanged()) {
+                        check() ;
+                    }
+                    continue ;
+                }
+                final WatchKey key ;
+                if (deadline == 0) {
+                    key = service.take() ;
+                } else {
+                    key = service.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) ;
+                }
+                if (key != null) {
+                    if (isDescriptorEvent(key)) {
+                        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(debouncePeriod) ;
+                    }
+                    if (!key.reset()) {
+                        logger.warn("Watch on " + file.getParent() + " lost, falling back to polling") ;
+                        lostWatch() ;
+                    }
+                }
+                if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                    deadline = 0 ;
+                    check() ;
+                }
+            } catch (final InterruptedException ie) {
+                // stop() interrupts the thread
+            } catch (final ClosedWatchServiceException cwse) {
+                // closed by stop()
+            } catch (final RuntimeException re) {
+                // keep watching, the next change may well be valid
+                logger.warn("Unexpected error while reloading " + file, re) ;
+            }
+        }
+    }
+
+    private boolean isDescriptorEvent(final WatchKey key) {
+        boolean result = false ;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                result = true ;
+            }
+        }
+        return result ;
+    }
+
+    private synchronized void lostWatch() {
+        closeWatchService() ;
+        if (pollPeriod <= 0) {
+            running = false ;
+        }
+    }
+
+    private void closeWatchService() {
+        final WatchService service = watchService ;
+        watchService = null ;
+        close(service) ;
+    }
+
+    private static void close(final WatchService service) {
+        if (service != null) {
+            try {
+                service.close() ;
+            } catch (final IOException ioe) {
+                logger.debug("Failed to close watch service", ioe) ;
+            }
+        }
+    }
+
+    /**
+     * Reload the descriptor if its content changed since the last reload.
+     * @return true if a new configuration was handed to the reloader.
+     */
+    public synchronized boolean check() {
+        final byte[] content ;
+        try {
+            content = Files.readAllBytes(file) ;
+            recordAttributes() ;
+        } catch (final IOException ioe) {
+            logger.warn("Failed to read " + file, ioe) ;
+            return false ;
+        }
+        final byte[] newDigest = digest(content) ;
+        if (Arrays.equals(digest, newDigest)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(file + " touched but not changed") ;
+            }
+            return false ;
+        }
+        // remember invalid content as well so it is only reported once
+        digest = newDigest ;
+
+        final ConfigTree config ;
+        try {
+            config = ConfigTree.fromInputStream(new ByteArrayInputStream(content)) ;
+        } catch (final SAXException saxe) {
+            logger.warn("Invalid descriptor " + file + ", keeping the current configuration", saxe) ;
+            return false ;
+        } catch (final IOException ioe) {
+            logger.warn("Failed to parse " + file, ioe) ;
+            return false ;
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Reloading " + file) ;
+        }
+        try {
+            reloader.reload(config) ;
+        } catch (final ManagedLifecycleException mle) {
+            logger.warn("Failed to apply the new configuration from " + file, mle) ;
+        }
+        return true ;
+    }
+
+    private boolean attributesChanged() {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class) ;
+            return attributes.size() != size || attributes.lastModifiedTime().toMillis() != lastModified ;
+        } catch (final IOException ioe) {
+            return false ;
+        }
+    }
+
+    private void recordAttributes() {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class) ;
+            size = attributes.size() ;
+            lastModified = attributes.lastModifiedTime().toMillis() ;
+        } catch (final IOException ioe) {
+            size = -1 ;
+            lastModified = -1 ;
+        }
+    }
+
+    private static byte[] digest(final byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content) ;
+        } catch (final NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not available", nsae) ;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers lifecycle events to listeners asynchronously, so that a slow listener does not
+ * hold up the thread changing the state of a managed instance.
+ * <p/>
+ * Listeners opt in by being wrapped, the wrapper being registered in their place:
+ * <pre>
+ * instance.addManagedLifecycleEventListener(dispatcher.asynchronousListener(listener)) ;
+ * </pre>
+ * Each wrapper has its own bounded queue, drained in batches by one executor task at a
+ * time, so events are delivered in the order they were fired and the events of one
+ * instance are never delivered concurrently.  While an event of an instance is still
+ * queued, the next events of the same instance are merged into it: the listener then
+ * receives a single event from the original state of the first to the new state of the
+ * last, in the queue position of the first.  When a queue is full the new event is merged
+ * into the last queued event of its instance or, if there is none, the oldest queued
+ * event is dropped, so the latest state of an instance, e.g. STOPPED or DESTROYED, is
+ * always delivered.
+ * <p/>
+ * The numbers of events submitted, delivered, coalesced, dropped and delivered later than
+ * the delay threshold are exposed through {@link ManagedLifecycleEventDispatcherMXBean}.
+ */
+public class ManagedLifecycleEventDispatcher implements ManagedLifecycleEventDispatcherMXBean {
+
+    private static final Logger logger = Logger.getLogger(ManagedLifecycleEventDispatcher.class) ;
+
+    /**
+     * The default capacity of the queue of each listener.
+     */
+    public static final int DEFAULT_CAPACITY = 1024 ;
+
+    /**
+     * The default delay above which a delivery is counted as delayed, in milliseconds.
+     */
+    public static final long DEFAULT_DELAY_THRESHOLD = 1000 ;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(final long left, final long right) {
+            return Math.max(left, right) ;
+        }
+    } ;
+
+    /**
+     * The maximum number of events queued for each listener.
+     */
+    private final int capacity ;
+    /**
+     * Whether queued events of the same instance are merged.
+     */
+    private final boolean coalesce ;
+    /**
+     * The delay threshold, in nanoseconds.
+     */
+    private final long delayThreshold ;
+    /**
+     * The executor draining the queues.
+     */
+    private final Executor executor ;
+    /**
+     * The pool created by the dispatcher, null if the executor was supplied.
+     */
+    private final ExecutorService ownExecutor ;
+
+    private final LongAdder submitted = new LongAdder() ;
+    private final LongAdder delivered = new LongAdder() ;
+    private final LongAdder coalesced = new LongAdder() ;
+    private final LongAdder dropped = new LongAdder() ;
+    private final LongAdder delayed = new LongAdder() ;
+    private final LongAdder failed = new LongAdder() ;
+    private final LongAdder queued = new LongAdder() ;
+    private final LongAdder delayNanos = new LongAdder() ;
+    private final LongAccumulator maxDelayNanos = new LongAccumulator(MAX, 0) ;
+
+    /**
+     * Construct a dispatcher with the default capacity and delay threshold, coalescing events.
+     */
+    public ManagedLifecycleEventDispatcher() {
+        this(DEFAULT_CAPACITY, true, DEFAULT_DELAY_THRESHOLD) ;
+    }
+
+    /**
+     * Construct a dispatcher draining the queues on its own pool of daemon threads.
+     * @param capacity The maximum number of events queued for each listener.
+     * @param coalesce true to merge the queued events of an instance, false to deliver every transition.
+     * @param delayThresholdMillis The delay above which a delivery is counted as delayed, in milliseconds.
+     */
+    public ManagedLifecycleEventDispatcher(final int capacity, final boolean coalesce, final long delayThresholdMillis) {
+        this(capacity, coalesce, delayThresholdMillis, null) ;
+    }
+
+    /**
+     * Construct a dispatcher.
+     * @param capacity The maximum number of events queued for each listener.
+     * @param coalesce true to merge the queued events of an instance, false to deliver every transition.
+     * @param delayThresholdMillis The delay above which a delivery is counted as delayed, in milliseconds.
+     * @param executor The executor draining the queues, null for a pool owned by the dispatcher.
+     */
+    public ManagedLifecycleEventDispatcher(final int capacity, final boolean coalesce, final long delayThresholdMillis,
+        final Executor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1") ;
+        }
+        if (delayThresholdMillis < 0) {
+            throw new IllegalArgumentException("delayThresholdMillis must not be negative") ;
+        }
+        this.capacity = capacity ;
+        this.coalesce = coalesce ;
+        this.delayThreshold = TimeUnit.MILLISECONDS.toNanos(delayThresholdMillis) ;
+        if (executor == null) {
+            ownExecutor = Executors.newCachedThreadPool(new DispatcherThreadFactory()) ;
+            this.executor = ownExecutor ;
+        } else {
+            ownExecutor = null ;
+            this.executor = executor ;
+        }
+    }
+
+    /**
+     * Wrap a lifecycle event listener so that it is notified asynchronously.
+     * @param listener The listener.
+     * @return The listener to register with the managed instances, and to remove from them.
+     */
+    public ManagedLifecycleEventListener asynchronousListener(final ManagedLifecycleEventListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null") ;
+        }
+        return new AsyncEventListener(listener) ;
+    }
+
+    /**
+     * Wrap a lifecycle thread event listener so that it is notified asynchronously.
+     * @param listener The listener.
+     * @return The listener to register with the managed instances, and to remove from them.
+     */
+    public ManagedLifecycleThreadEventListener asynchronousThreadListener(final ManagedLifecycleThreadEventListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null") ;
+        }
+        return new AsyncThreadEventListener(listener) ;
+    }
+
+    /**
+     * Stop the pool owned by the dispatcher once the queued events have been delivered.
+     * Events fired afterwards are dropped.  Has no effect on a supplied executor.
+     */
+    public void shutdown() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown() ;
+        }
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum() ;
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum() ;
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum() ;
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum() ;
+    }
+
+    public long getDelayedCount() {
+        return delayed.sum() ;
+    }
+
+    public long getFailedCount() {
+        return failed.sum() ;
+    }
+
+    public long getQueuedCount() {
+        return queued.sum() ;
+    }
+
+    public double getAverageDelayMillis() {
+        final long count = delivered.sum() ;
+        return (count == 0) ? 0 : delayNanos.sum() / (count * 1000000.0) ;
+    }
+
+    public double getMaxDelayMillis() {
+        return maxDelayNanos.get() / 1000000.0 ;
+    }
+
+    public long getDelayThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(delayThreshold) ;
+    }
+
+    public void reset() {
+        submitted.reset() ;
+        delivered.reset() ;
+        coalesced.reset() ;
+        dropped.reset() ;
+        delayed.reset() ;
+        failed.reset() ;
+        delayNanos.reset() ;
+        maxDelayNanos.reset() ;
+    }
+
+    /**
+     * An event waiting to be delivered.
+     */
+    private static final class QueuedEvent {
+        final Object source ;
+        final Object origState ;
+        /**
+         * The latest new state, guarded by the queue.
+         */
+        Object newState ;
+        final long fired ;
+
+        QueuedEvent(final Object source, final Object origState, final Object newState, final long fired) {
+            this.source = source ;
+            this.origState = origState ;
+            this.newState = newState ;
+            this.fired = fired ;
+        }
+    }
+
+    /**
+     * The queue of one listener.
+     */
+    private abstract class AsyncListener implements Runnable {
+        /**
+         * The queued events, guarded by this.
+         */
+        private final ArrayDeque<QueuedEvent> events = new ArrayDeque<QueuedEvent>() ;
+        /**
+         * The queued event of each instance, when coalescing, guarded by this.
+         */
+        private final Map<Object, QueuedEvent> pending = new IdentityHashMap<Object, QueuedEvent>() ;
+        /**
+         * Whether a drain task is scheduled or running, guarded by this.
+         */
+        private boolean scheduled ;
+
+        /**
+         * Queue an event and schedule the drain task if it is not already scheduled.
+         * @param source The managed instance.
+         * @param origState The original state.
+         * @param newState The new state.
+         */
+        final void submit(final Object source, final Object origState, final Object newState) {
+            submitted.increment() ;
+            final boolean schedule ;
+            synchronized(this) {
+                if (coalesce) {
+                    final QueuedEvent existing = pending.get(source) ;
+                    if (existing != null) {
+                        existing.newState = newState ;
+                        coalesced.increment() ;
+                        return ;
+                    }
+                }
+                if (events.size() >= capacity) {
+                    final Iterator<QueuedEvent> iter = events.descendingIterator() ;
+                    while(iter.hasNext()) {
+                        final QueuedEvent existing = iter.next() ;
+                        if (existing.source == source) {
+                            existing.newState = newState ;
+                            coalesced.increment() ;
+                            return ;
+                        }
+                    }
+                    final QueuedEvent oldest = events.removeFirst() ;
+                    if (pending.get(oldest.source) == oldest) {
+                        pending.remove(oldest.source) ;
+                    }
+                    queued.decrement() ;
+                    dropped.increment() ;
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Event queue full, dropping transition from " + oldest.origState + " to " + oldest.newState) ;
+                    }
+                }
+                final QueuedEvent event = new QueuedEvent(source, origState, newState, System.nanoTime()) ;
+                events.add(event) ;
+                if (coalesce) {
+                    pending.put(source, event) ;
+                }
+                queued.increment() ;
+                schedule = !scheduled ;
+                scheduled = true ;
+            }
+            if (schedule) {
+                try {
+                    executor.execute(this) ;
+                } catch (final RejectedExecutionException ree) {
+                    final int discarded ;
+                    synchronized(this) {
+                        discarded = events.size() ;
+                        events.clear() ;
+                        pending.clear() ;
+                        scheduled = false ;
+                    }
+                    queued.add(-discarded) ;
+                    dropped.add(discarded) ;
+                    logger.warn("Event executor rejected delivery, dropped " + discarded + " events") ;
+                }
+            }
+        }
+
+        /**
+         * Deliver the queued events in batches until the queue is empty.
+         */
+        public final void run() {
+            boolean drained = false ;
+            try {
+                while(true) {
+                    final QueuedEvent[] batch ;
+                    synchronized(this) {
+                        if (events.isEmpty()) {
+                            scheduled = false ;
+                            drained = true ;
+                            return ;
+                        }
+                        batch = events.toArray(new QueuedEvent[events.size()]) ;
+                        events.clear() ;
+                        pending.clear() ;
+                    }
+                    queued.add(-batch.length) ;
+                    for(QueuedEvent event: batch) {
+                        final long delay = System.nanoTime() - event.fired ;
+                        delayNanos.add(delay) ;
+                        maxDelayNanos.accumulate(delay) ;
+                        if (delay > delayThreshold) {
+                            delayed.increment() ;
+                        }
+                        try {
+                            deliver(event.source, event.origState, event.newState) ;
+                        } catch (final Throwable th) {
+                            failed.increment() ;
+                            logger.warn("Unexpected error from asynchronous lifecycle listener", th) ;
+                        }
+                        delivered.increment() ;
+                    }
+                }
+            } finally {
+                if (!drained) {
+                    // left abnormally, let the next submit schedule a new drain task
+                    synchronized(this) {
+                        scheduled = false ;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Notify the wrapped listener.
+         * @param source The managed instance.
+         * @param origState The original state.
+         * @param newState The new state.
+         */
+        abstract void deliver(final Object source, final Object origState, final Object newState) ;
+    }
+
+    /**
+     * The asynchronous wrapper of a lifecycle event listener.
+     */
+    private final class AsyncEventListener extends AsyncListener implements ManagedLifecycleEventListener {
+        private final ManagedLifecycleEventListener listener ;
+
+        AsyncEventListener(final ManagedLifecycleEventListener listener) {
+            this.listener = listener ;
+        }
+
+        public void stateChanged(final ManagedLifecycleStateEvent event) {
+            submit(event.getSource(), event.getOriginalState(), event.getNewState()) ;
+        }
+
+        void deliver(final Object source, final Object origState, final Object newState) {
+            listener.stateChanged(new ManagedLifecycleStateEvent((ManagedLifecycle) source,
+                (ManagedLifecycleState) origState, (ManagedLifecycleState) newState)) ;
+        }
+
+        @Override
+        public String toString() {
+            return "AsyncEventListener[" + listener + "]" ;
+        }
+    }
+
+    /**
+     * The asynchronous wrapper of a lifecycle thread event listener.
+     */
+    private final class AsyncThreadEventListener extends AsyncListener implements ManagedLifecycleThreadEventListener {
+        private final ManagedLifecycleThreadEventListener listener ;
+
+        AsyncThreadEventListener(final ManagedLifecycleThreadEventListener listener) {
+            this.listener = listener ;
+        }
+
+        public void stateChanged(final ManagedLifecycleThreadStateEvent event) {
+            submit(event.getSource(), event.getOriginalState(), event.getNewState()) ;
+        }
+
+        void deliver(final Object source, final Object origState, final Object newState) {
+            listener.stateChanged(new ManagedLifecycleThreadStateEvent((AbstractThreadedManagedLifecycle) source,
+                (ManagedLifecycleThreadState) origState, (ManagedLifecycleThreadState) newState)) ;
+        }
+
+        @Override
+        public String toString() {
+            return "AsyncThreadEventListener[" + listener + "]" ;
+        }
+    }
+
+    /**
+     * Creates the daemon threads of the pool owned by the dispatcher.
+     */
+    private static final class DispatcherThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger() ;
+        private final String prefix = "ManagedLifecycleEventDispatcher-" + POOL_NUMBER.incrementAndGet() + "-" ;
+        private final AtomicInteger threadNumber = new AtomicInteger() ;
+
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, prefix + threadNumber.incrementAndGet()) ;
+            thread.setDaemon(true) ;
+            return thread ;
+        }
+    }
+}
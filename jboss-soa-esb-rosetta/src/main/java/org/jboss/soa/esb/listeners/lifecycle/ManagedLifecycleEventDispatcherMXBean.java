@@ -0,0 +1,72 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+/**
+ * Management interface of {@link ManagedLifecycleEventDispatcher}.
+ */
+public interface ManagedLifecycleEventDispatcherMXBean {
+
+    /**
+     * Get the number of events fired to the asynchronous listeners.
+     * @return The number of events submitted.
+     */
+    long getSubmittedCount() ;
+
+    /**
+     * Get the number of events delivered to the asynchronous listeners.
+     * @return The number of events delivered.
+     */
+    long getDeliveredCount() ;
+
+    /**
+     * Get the number of events merged into an event of the same instance still queued.
+     * @return The number of events coalesced.
+     */
+    long getCoalescedCount() ;
+
+    /**
+     * Get the number of events discarded because the queue of a listener was full.
+     * @return The number of events dropped.
+     */
+    long getDroppedCount() ;
+
+    /**
+     * Get the number of events delivered later than the delay threshold.
+     * @return The number of events delayed.
+     */
+    long getDelayedCount() ;
+
+    /**
+     * Get the number of deliveries that failed with an exception from the listener.
+     * @return The number of failed deliveries.
+     */
+    long getFailedCount() ;
+
+    /**
+     * Get the number of events currently queued.
+     * @return The number of events queued.
+     */
+    long getQueuedCount() ;
+
+    /**
+     * Get the average time between an event being fired and delivered.
+     * @return The average delay, in milliseconds.
+     */
+    double getAverageDelayMillis() ;
+
+    /**
+     * Get the longest time between an event being fired and delivered.
+     * @return The maximum delay, in milliseconds.
+     */
+    double getMaxDelayMillis() ;
+
+    /**
+     * Get the delay above which a delivery is counted as delayed.
+     * @return The delay threshold, in milliseconds.
+     */
+    long getDelayThresholdMillis() ;
+
+    /**
+     * Reset the counters, except the number of events queued.
+     */
+    void reset() ;
+}
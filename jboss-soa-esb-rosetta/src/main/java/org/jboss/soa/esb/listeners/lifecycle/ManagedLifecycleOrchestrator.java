@@ -0,0 +1,404 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.helpers.ConfigTreeDiff;
+
+/**
+ * Starts and stops a set of managed instances concurrently, respecting their dependencies.
+ * <p/>
+ * Each instance is identified by the name attribute of its configuration and declares the
+ * instances it depends on in the {@link #PARAM_DEPENDS} attribute.  The dependencies form
+ * a directed acyclic graph, cycles are rejected.  An instance is initialised and started as
+ * soon as all of its dependencies are started, so independent instances start in parallel
+ * on up to one thread per core; instances are stopped and destroyed once all the instances
+ * depending on them have been, i.e. in reverse dependency order.
+ * <p/>
+ * If an instance fails to start its dependents are not started and the instances already
+ * started are shut down again before the failure is rethrown.  A failure during shutdown
+ * does not prevent the remaining instances from being shut down, the first one is rethrown
+ * once the shutdown is complete.
+ */
+public class ManagedLifecycleOrchestrator {
+
+    private static final Logger logger = Logger.getLogger(ManagedLifecycleOrchestrator.class) ;
+
+    /**
+     * The attribute listing the names of the instances an instance depends on, separated by commas or whitespace.
+     */
+    public static final String PARAM_DEPENDS = "depends" ;
+
+    /**
+     * The instances in the order they were added, keyed by name.
+     */
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>() ;
+    /**
+     * The executor supplied by the caller, null to create a pool for each operation.
+     */
+    private final ExecutorService executor ;
+    /**
+     * The maximum number of instances processed concurrently when creating a pool.
+     */
+    private final int parallelism ;
+    /**
+     * The instances in dependency order, null until the graph has been resolved.
+     */
+    private List<Node> order ;
+
+    /**
+     * Construct an orchestrator processing up to one instance per available processor at a time.
+     */
+    public ManagedLifecycleOrchestrator() {
+        this(Runtime.getRuntime().availableProcessors()) ;
+    }
+
+    /**
+     * Construct an orchestrator processing a bounded number of instances at a time.
+     * @param parallelism The maximum number of instances processed concurrently.
+     */
+    public ManagedLifecycleOrchestrator(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1") ;
+        }
+        this.executor = null ;
+        this.parallelism = parallelism ;
+    }
+
+    /**
+     * Construct an orchestrator processing instances on the supplied executor.
+     * @param executor The executor, which is not shut down by the orchestrator.
+     */
+    public ManagedLifecycleOrchestrator(final ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null") ;
+        }
+        this.executor = executor ;
+        this.parallelism = 0 ;
+    }
+
+    /**
+     * Add a managed instance.
+     * @param instance The managed instance, not yet initialised.
+     * @throws ManagedLifecycleException if another instance has the same name.
+     */
+    public synchronized void add(final ManagedLifecycle instance) throws ManagedLifecycleException {
+        final ConfigTree config = instance.getConfig() ;
+        final String name = getName(config) ;
+        if (nodes.containsKey(name)) {
+            throw new ManagedLifecycleException("Duplicate managed instance " + name) ;
+        }
+        nodes.put(name, new Node(name, instance, getDependencies(config))) ;
+        order = null ;
+    }
+
+    /**
+     * Get the managed instances in dependency order, each one after the instances it depends on.
+     * @return The managed instances.
+     * @throws ManagedLifecycleException for unknown or cyclic dependencies.
+     */
+    public synchronized List<ManagedLifecycle> getStartOrder() throws ManagedLifecycleException {
+        final List<Node> resolved = resolve() ;
+        final List<ManagedLifecycle> instances = new ArrayList<ManagedLifecycle>(resolved.size()) ;
+        for (Node node : resolved) {
+            instances.add(node.instance) ;
+        }
+        return Collections.unmodifiableList(instances) ;
+    }
+
+    /**
+     * Initialise and start the managed instances.
+     * @throws ManagedLifecycleException for unknown or cyclic dependencies, or the first failure of an instance.
+     */
+    public synchronized void start() throws ManagedLifecycleException {
+        final List<Node> resolved = resolve() ;
+        final long start = System.nanoTime() ;
+        final ManagedLifecycleException failure = execute(resolved, true) ;
+        if (failure != null) {
+            logger.warn("Failed to start all managed instances, shutting down those started", failure) ;
+            execute(resolved, false) ;
+            throw failure ;
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Started " + resolved.size() + " managed instances in " + ((System.nanoTime() - start) / 1000000) + "ms") ;
+        }
+    }
+
+    /**
+     * Stop and destroy the managed instances, in reverse dependency order.
+     * @throws ManagedLifecycleException for unknown or cyclic dependencies, or the first failure of an instance.
+     */
+    public synchronized void stop() throws ManagedLifecycleException {
+        final ManagedLifecycleException failure = execute(resolve(), false) ;
+        if (failure != null) {
+            throw failure ;
+        }
+    }
+
+    /**
+     * Resolve the dependencies and sort the instances.
+     * @return The nodes in dependency order.
+     * @throws ManagedLifecycleException for unknown or cyclic dependencies.
+     */
+    private List<Node> resolve() throws ManagedLifecycleException {
+        if (order != null) {
+            return order ;
+        }
+        for (Node node : nodes.values()) {
+            node.dependencies.clear() ;
+            node.dependents.clear() ;
+        }
+        for (Node node : nodes.values()) {
+            for (String name : node.dependencyNames) {
+                final Node dependency = nodes.get(name) ;
+                if (dependency == null) {
+                    throw new ManagedLifecycleException(node.name + " depends on unknown managed instance " + name) ;
+                }
+                if (!node.dependencies.contains(dependency)) {
+                    node.dependencies.add(dependency) ;
+                    dependency.dependents.add(node) ;
+                }
+            }
+        }
+
+        final List<Node> sorted = new ArrayList<Node>(nodes.size()) ;
+        final Map<Node, Boolean> visiting = new LinkedHashMap<Node, Boolean>() ;
+        for (Node node : nodes.values()) {
+            visit(node, visiting, sorted) ;
+        }
+        order = sorted ;
+        return sorted ;
+    }
+
+    /**
+     * Depth first visit, adding each node after its dependencies.
+     * @param node The node to visit.
+     * @param visiting The nodes visited, mapped to true while their dependencies are being visited.
+     * @param sorted The sorted nodes.
+     * @throws ManagedLifecycleException if a dependency cycle is found.
+     */
+    private static void visit(final Node node, final Map<Node, Boolean> visiting, final List<Node> sorted)
+        throws ManagedLifecycleException {
+        final Boolean inProgress = visiting.get(node) ;
+        if (inProgress != null) {
+            if (inProgress.booleanValue()) {
+                final StringBuilder cycle = new StringBuilder() ;
+                boolean inCycle = false ;
+                for (Map.Entry<Node, Boolean> entry : visiting.entrySet()) {
+                    inCycle |= (entry.getKey() == node) ;
+                    if (inCycle && entry.getValue().booleanValue()) {
+                        cycle.append(entry.getKey().name).append(" -> ") ;
+                    }
+                }
+                throw new ManagedLifecycleException("Dependency cycle " + cycle.append(node.name)) ;
+            }
+            return ;
+        }
+        visiting.put(node, Boolean.TRUE) ;
+        for (Node dependency : node.dependencies) {
+            visit(dependency, visiting, sorted) ;
+        }
+        visiting.put(node, Boolean.FALSE) ;
+        sorted.add(node) ;
+    }
+
+    /**
+     * Process every node once all of its predecessors have been processed.
+     * @param resolved The nodes in dependency order.
+     * @param starting true to initialise and start, following dependencies, false to stop and destroy, following dependents.
+     * @return The first failure, null if every node was processed.
+     * @throws ManagedLifecycleException if interrupted while waiting.
+     */
+    private ManagedLifecycleException execute(final List<Node> resolved, final boolean starting)
+        throws ManagedLifecycleException {
+        if (resolved.isEmpty()) {
+            return null ;
+        }
+        final Run run = new Run(resolved.size(), starting) ;
+        final ExecutorService runExecutor = (executor != null) ? executor :
+            Executors.newFixedThreadPool(Math.min(parallelism, resolved.size()), new OrchestratorThreadFactory()) ;
+        try {
+            for (Node node : resolved) {
+                node.pending.set(starting ? node.dependencies.size() : node.dependents.size()) ;
+                node.blocked = false ;
+            }
+            for (Node node : resolved) {
+                if (node.pending.get() == 0) {
+                    run.submit(runExecutor, node) ;
+                }
+            }
+            run.remaining.await() ;
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt() ;
+            throw new ManagedLifecycleException("Interrupted while waiting for managed instances", ie) ;
+        } finally {
+            if (executor == null) {
+                runExecutor.shutdown() ;
+            }
+        }
+        return run.failure.get() ;
+    }
+
+    /**
+     * Get the name identifying an instance.
+     * @param config The configuration of the instance.
+     * @return The name attribute, or the element name if there is none.
+     */
+    private static String getName(final ConfigTree config) {
+        final String name = config.getAttribute(ConfigTreeDiff.DEFAULT_IDENTITY_ATTRIBUTE) ;
+        return (name != null) ? name : config.getName() ;
+    }
+
+    /**
+     * Get the names of the instances an instance depends on.
+     * @param config The configuration of the instance.
+     * @return The dependency names.
+     */
+    private static List<String> getDependencies(final ConfigTree config) {
+        final String depends = config.getAttribute(PARAM_DEPENDS) ;
+        final List<String> names = new ArrayList<String>() ;
+        if (depends != null) {
+            for (String name : depends.split("[,\\s]+")) {
+                if (name.length() > 0) {
+                    names.add(name) ;
+                }
+            }
+        }
+        return names ;
+    }
+
+    /**
+     * One managed instance of the graph.
+     */
+    private static final class Node {
+        final String name ;
+        final ManagedLifecycle instance ;
+        final List<String> dependencyNames ;
+        final List<Node> dependencies = new ArrayList<Node>() ;
+        final List<Node> dependents = new ArrayList<Node>() ;
+        /**
+         * The number of predecessors still to be processed in the current run.
+         */
+        final AtomicInteger pending = new AtomicInteger() ;
+        /**
+         * Set when a predecessor failed to start, written before pending is decremented.
+         */
+        volatile boolean blocked ;
+
+        Node(final String name, final ManagedLifecycle instance, final List<String> dependencyNames) {
+            this.name = name ;
+            this.instance = instance ;
+            this.dependencyNames = dependencyNames ;
+        }
+    }
+
+    /**
+     * The progress of one start or stop.
+     */
+    private static final class Run {
+        final CountDownLatch remaining ;
+        final boolean starting ;
+        final AtomicReference<ManagedLifecycleException> failure = new AtomicReference<ManagedLifecycleException>() ;
+
+        Run(final int count, final boolean starting) {
+            this.remaining = new CountDownLatch(count) ;
+            this.starting = starting ;
+        }
+
+        void submit(final ExecutorService runExecutor, final Node node) {
+            final Runnable task = new Runnable() {
+                public void run() {
+                    process(runExecutor, node) ;
+                }
+            } ;
+            try {
+                runExecutor.execute(task) ;
+            } catch (final RejectedExecutionException ree) {
+                task.run() ;
+            }
+        }
+
+        void process(final ExecutorService runExecutor, final Node node) {
+            boolean succeeded = false ;
+            try {
+                if (node.blocked) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Not starting " + node.name + ", a dependency failed to start") ;
+                    }
+                } else if (starting) {
+                    node.instance.initialise() ;
+                    node.instance.start() ;
+                    succeeded = true ;
+                } else {
+                    shutdown(node.instance) ;
+                    succeeded = true ;
+                }
+            } catch (final ManagedLifecycleException mle) {
+                fail(node, mle) ;
+            } catch (final Throwable th) {
+                // errors such as NoClassDefFoundError must fail the run as well
+                fail(node, new ManagedLifecycleException("Unexpected error from " + node.name, th)) ;
+            } finally {
+                for (Node successor : (starting ? node.dependents : node.dependencies)) {
+                    if (starting && !succeeded) {
+                        successor.blocked = true ;
+                    }
+                    if (successor.pending.decrementAndGet() == 0) {
+                        submit(runExecutor, successor) ;
+                    }
+                }
+                remaining.countDown() ;
+            }
+        }
+
+        private void fail(final Node node, final ManagedLifecycleException failure) {
+            logger.warn("Failed to " + (starting ? "start " : "stop ") + node.name, failure) ;
+            this.failure.compareAndSet(null, failure) ;
+        }
+
+        /**
+         * Stop the instance if it was started and destroy it if it was initialised.
+         * @param instance The managed instance.
+         * @throws ManagedLifecycleException for errors while stopping or destroying.
+         */
+        private static void shutdown(final ManagedLifecycle instance) throws ManagedLifecycleException {
+            final ManagedLifecycleState state = instance.getState() ;
+            if ((state == ManagedLifecycleState.STARTED) || (state == ManagedLifecycleState.RUNNING)) {
+                try {
+                    instance.stop() ;
+                } finally {
+                    instance.destroy() ;
+                }
+            } else if ((state == ManagedLifecycleState.INITIALISED) || (state == ManagedLifecycleState.STOPPED)) {
+                instance.destroy() ;
+            }
+        }
+    }
+
+    /**
+     * Creates the daemon threads of the pools created for each operation.
+     */
+    private static final class OrchestratorThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger() ;
+        private final String prefix = "ManagedLifecycleOrchestrator-" + POOL_NUMBER.incrementAndGet() + "-" ;
+        private final AtomicInteger threadNumber = new AtomicInteger() ;
+
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, prefix + threadNumber.incrementAndGet()) ;
+            thread.setDaemon(true) ;
+            return thread ;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.helpers.ConfigTreeDiff;
+import org.jboss.soa.esb.helpers.ConfigTreePath;
+
+/**
+ * Keeps a set of managed instances in step with a reloadable configuration.
+ * <p/>
+ * Each node of the configuration selected by the path is the configuration of one
+ * managed instance.  When a new version of the configuration is supplied only the
+ * instances whose configuration subtree changed are stopped, destroyed and recreated
+ * from the new subtree; instances whose subtree is unchanged keep running.
+ */
+public class ManagedLifecycleReloader {
+
+    private static final Logger logger = Logger.getLogger(ManagedLifecycleReloader.class) ;
+
+    /**
+     * Creates the managed instance for a configuration subtree.
+     */
+    public interface Factory {
+        /**
+         * Create a managed instance.
+         * @param config The configuration subtree of the instance.
+         * @return The managed instance, not yet initialised.
+         * @throws ManagedLifecycleException for errors during creation.
+         */
+        ManagedLifecycle create(final ConfigTree config) throws ManagedLifecycleException ;
+    }
+
+    /**
+     * The path selecting the configuration of each managed instance.
+     */
+    private final ConfigTreePath selector ;
+    /**
+     * The factory for new managed instances.
+     */
+    private final Factory factory ;
+    /**
+     * The current configuration, read without locking so that readers are not held up by a reload.
+     */
+    private volatile ConfigTree config ;
+    /**
+     * The running instances in document order, keyed by their configuration subtree.
+     */
+    private final List<ConfigTree> configs = new ArrayList<ConfigTree>() ;
+    private final Map<ConfigTree, ManagedLifecycle> instances = new IdentityHashMap<ConfigTree, ManagedLifecycle>() ;
+
+    /**
+     * Construct the reloader.
+     * @param selector The path selecting the configuration of each managed instance, e.g. //listeners/*
+     * @param factory The factory for the managed instances.
+     */
+    public ManagedLifecycleReloader(final ConfigTreePath selector, final Factory factory) {
+        this.selector = selector ;
+        this.factory = factory ;
+    }
+
+    /**
+     * Create, initialise and start the managed instances of the initial configuration.
+     * @param config The configuration.
+     * @throws ManagedLifecycleException for errors while starting an instance.
+     */
+    public synchronized void start(final ConfigTree config) throws ManagedLifecycleException {
+        if (this.config != null) {
+            throw new ManagedLifecycleException("Reloader already started") ;
+        }
+        this.config = config ;
+        for (ConfigTree instanceConfig : selector.select(config)) {
+            startInstance(instanceConfig) ;
+        }
+    }
+
+    /**
+     * Apply a new version of the configuration.
+     * <p/>
+     * Instances whose configuration was removed or changed are stopped and destroyed,
+     * in reverse document order, then the replacements and the instances of new
+     * configuration subtrees are created and started in document order.  A failure
+     * does not prevent the remaining instances from being processed, the first one is
+     * rethrown once the reload is complete.
+     *
+     * @param newConfig The new version of the configuration.
+     * @return The differences between the previous and the new configuration.
+     * @throws ManagedLifecycleException for errors while stopping or starting an instance.
+     */
+    public synchronized ConfigTreeDiff reload(final ConfigTree newConfig) throws ManagedLifecycleException {
+        if (config == null) {
+            throw new ManagedLifecycleException("Reloader not started") ;
+        }
+        final ConfigTreeDiff diff = ConfigTreeDiff.compare(config, newConfig) ;
+        config = newConfig ;
+        if (diff.isEmpty()) {
+            return diff ;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Configuration changes:\n" + diff) ;
+        }
+
+        ManagedLifecycleException failure = null ;
+        final Map<ConfigTree, ManagedLifecycle> kept = new IdentityHashMap<ConfigTree, ManagedLifecycle>() ;
+        for (int i = configs.size() - 1; i >= 0; i--) {
+            final ConfigTree oldConfig = configs.get(i) ;
+            final ManagedLifecycle instance = instances.get(oldConfig) ;
+            final ConfigTree counterpart = diff.getCounterpart(oldConfig) ;
+            if (counterpart != null && !diff.isChanged(oldConfig)) {
+                kept.put(counterpart, instance) ;
+                continue ;
+            }
+            if (logger.isInfoEnabled()) {
+                logger.info("Stopping " + oldConfig.getName() + " " + oldConfig.getAttribute(ConfigTreeDiff.DEFAULT_IDENTITY_ATTRIBUTE) +
+                    ((counterpart == null) ? ", configuration removed" : ", configuration changed")) ;
+            }
+            try {
+                stopInstance(instance) ;
+            } catch (final ManagedLifecycleException mle) {
+                logger.warn("Failed to stop managed instance", mle) ;
+                if (failure == null) {
+                    failure = mle ;
+                }
+            }
+        }
+        configs.clear() ;
+        instances.clear() ;
+
+        for (ConfigTree instanceConfig : selector.select(newConfig)) {
+            final ManagedLifecycle instance = kept.get(instanceConfig) ;
+            if (instance != null) {
+                configs.add(instanceConfig) ;
+                instances.put(instanceConfig, instance) ;
+                continue ;
+            }
+            try {
+                startInstance(instanceConfig) ;
+            } catch (final ManagedLifecycleException mle) {
+                logger.warn("Failed to start managed instance", mle) ;
+                if (failure == null) {
+                    failure = mle ;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure ;
+        }
+        return diff ;
+    }
+
+    /**
+     * Stop and destroy every managed instance, in reverse document order.
+     * @throws ManagedLifecycleException for the first error while stopping an instance.
+     */
+    public synchronized void stop() throws ManagedLifecycleException {
+        ManagedLifecycleException failure = null ;
+        for (int i = configs.size() - 1; i >= 0; i--) {
+            try {
+                stopInstance(instances.get(configs.get(i))) ;
+            } catch (final ManagedLifecycleException mle) {
+                logger.warn("Failed to stop managed instance", mle) ;
+                if (failure == null) {
+                    failure = mle ;
+                }
+            }
+        }
+        configs.clear() ;
+        instances.clear() ;
+        config = null ;
+        if (failure != null) {
+            throw failure ;
+        }
+    }
+
+    /**
+     * Get the current configuration.
+     * @return The configuration last started or reloaded, null if stopped.
+     */
+    public ConfigTree getConfig() {
+        return config ;
+    }
+
+    /**
+     * Get the running managed instances.
+     * @return The instances in document order of their configuration.
+     */
+    public synchronized List<ManagedLifecycle> getInstances() {
+        final List<ManagedLifecycle> result = new ArrayList<ManagedLifecycle>(configs.size()) ;
+        for (ConfigTree instanceConfig : configs) {
+            result.add(instances.get(instanceConfig)) ;
+        }
+        return result ;
+    }
+
+    private void startInstance(final ConfigTree instanceConfig) throws ManagedLifecycleException {
+        final ManagedLifecycle instance = factory.create(instanceConfig) ;
+        instance.initialise() ;
+        try {
+            instance.start() ;
+        } catch (final ManagedLifecycleException mle) {
+            instance.destroy() ;
+            throw mle ;
+        }
+        configs.add(instanceConfig) ;
+        instances.put(instanceConfig, instance) ;
+    }
+
+    private static void stopInstance(final ManagedLifecycle instance) throws ManagedLifecycleException {
+        try {
+            instance.stop() ;
+        } finally {
+            instance.destroy() ;
+        }
+    }
+}
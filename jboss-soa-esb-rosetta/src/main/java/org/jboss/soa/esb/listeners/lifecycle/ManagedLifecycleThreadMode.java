@@ -0,0 +1,167 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The ways a threaded managed instance can run its {@link AbstractThreadedManagedLifecycle#doRun()} loop.
+ */
+public enum ManagedLifecycleThreadMode {
+
+    /**
+     * A dedicated platform thread per instance.
+     */
+    PLATFORM {
+        void execute(final Runnable task, final String name, final int priority, final Object executor)
+            throws ManagedLifecycleException {
+            final Thread thread = new Thread(task, name) ;
+            thread.setPriority(priority) ;
+            thread.start() ;
+        }
+    },
+    /**
+     * A virtual thread per instance, for doRun() loops that spend their time blocked on I/O.
+     * Falls back to PLATFORM on runtimes without virtual threads.
+     */
+    VIRTUAL {
+        void execute(final Runnable task, final String name, final int priority, final Object executor)
+            throws ManagedLifecycleException {
+            final Thread thread = VirtualThreads.newThread(task, name) ;
+            if (thread == null) {
+                PLATFORM.execute(task, name, priority, executor) ;
+            } else {
+                thread.start() ;
+            }
+        }
+    },
+    /**
+     * A custom {@link Executor} or {@link ThreadFactory}, named by class.  Each managed instance
+     * creates its own with {@link #createExecutor(String)} and shuts it down with
+     * {@link #shutdownExecutor(Object)} when destroyed, so no pool outlives its deployment.
+     * The thread is renamed while it runs the instance.
+     */
+    EXECUTOR {
+        void execute(final Runnable task, final String name, final int priority, final Object target)
+            throws ManagedLifecycleException {
+            final Runnable named = new Runnable() {
+                public void run() {
+                    final Thread current = Thread.currentThread() ;
+                    final String origName = current.getName() ;
+                    current.setName(name) ;
+                    try {
+                        task.run() ;
+                    } finally {
+                        current.setName(origName) ;
+                    }
+                }
+            } ;
+            try {
+                if (target instanceof Executor) {
+                    ((Executor) target).execute(named) ;
+                } else {
+                    final Thread thread = ((ThreadFactory) target).newThread(named) ;
+                    if (thread == null) {
+                        throw new ManagedLifecycleException("Thread factory " + target.getClass().getName() + " refused to create a thread") ;
+                    }
+                    thread.start() ;
+                }
+            } catch (final RejectedExecutionException ree) {
+                throw new ManagedLifecycleException("Executor " + target.getClass().getName() + " rejected " + name, ree) ;
+            }
+        }
+    };
+
+    private static final Logger logger = Logger.getLogger(ManagedLifecycleThreadMode.class) ;
+
+    /**
+     * Run the task.
+     * @param task The task to run.
+     * @param name The thread name.
+     * @param priority The priority of platform threads.
+     * @param executor The Executor or ThreadFactory created by {@link #createExecutor(String)}, for EXECUTOR.
+     * @throws ManagedLifecycleException if the task could not be started.
+     */
+    abstract void execute(final Runnable task, final String name, final int priority, final Object executor)
+        throws ManagedLifecycleException ;
+
+    /**
+     * Create the custom executor of an instance, through the context class loader of the caller.
+     * @param className The class name of the Executor or ThreadFactory.
+     * @return The new Executor or ThreadFactory.
+     * @throws ManagedLifecycleException if the class cannot be loaded or instantiated.
+     */
+    static Object createExecutor(final String className) throws ManagedLifecycleException {
+        try {
+            final ClassLoader loader = Thread.currentThread().getContextClassLoader() ;
+            final Class<?> type = Class.forName(className, true, (loader == null) ? ManagedLifecycleThreadMode.class.getClassLoader() : loader) ;
+            if (!Executor.class.isAssignableFrom(type) && !ThreadFactory.class.isAssignableFrom(type)) {
+                throw new ManagedLifecycleException(className + " is neither an Executor nor a ThreadFactory") ;
+            }
+            return type.getDeclaredConstructor().newInstance() ;
+        } catch (final ReflectiveOperationException roe) {
+            throw new ManagedLifecycleException("Failed to create executor " + className, roe) ;
+        }
+    }
+
+    /**
+     * Release the custom executor of a destroyed instance: an ExecutorService is shut down, any
+     * other AutoCloseable is closed.  A plain Executor or ThreadFactory is simply dropped.
+     * @param executor The Executor or ThreadFactory created by {@link #createExecutor(String)}.
+     */
+    static void shutdownExecutor(final Object executor) {
+        try {
+            if (executor instanceof ExecutorService) {
+                ((ExecutorService) executor).shutdown() ;
+            } else if (executor instanceof AutoCloseable) {
+                ((AutoCloseable) executor).close() ;
+            }
+        } catch (final Exception ex) {
+            logger.warn("Failed to shut down executor " + executor.getClass().getName(), ex) ;
+        }
+    }
+
+    /**
+     * Thread.ofVirtual(), looked up reflectively so that older runtimes can still load this class.
+     */
+    private static final class VirtualThreads {
+        /**
+         * (String name, Runnable task)Thread, null when virtual threads are not available.
+         */
+        private static final MethodHandle UNSTARTED = lookup() ;
+
+        private static MethodHandle lookup() {
+            try {
+                final MethodHandles.Lookup lookup = MethodHandles.publicLookup() ;
+                final Class<?> builderType = Class.forName("java.lang.Thread$Builder") ;
+                final Class<?> virtualBuilderType = Class.forName("java.lang.Thread$Builder$OfVirtual") ;
+                final MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderType)) ;
+                final MethodHandle name = lookup.findVirtual(virtualBuilderType, "name", MethodType.methodType(virtualBuilderType, String.class)) ;
+                final MethodHandle unstarted = lookup.findVirtual(builderType, "unstarted", MethodType.methodType(Thread.class, Runnable.class)) ;
+                // unstarted(name(ofVirtual(), threadName), task)
+                final MethodHandle named = MethodHandles.collectArguments(name, 0, ofVirtual) ;
+                return MethodHandles.collectArguments(unstarted.asType(MethodType.methodType(Thread.class, virtualBuilderType, Runnable.class)), 0, named) ;
+            } catch (final ReflectiveOperationException roe) {
+                logger.warn("Virtual threads are not available on this runtime, platform threads will be used instead") ;
+                return null ;
+            }
+        }
+
+        static Thread newThread(final Runnable task, final String name) throws ManagedLifecycleException {
+            if (UNSTARTED == null) {
+                return null ;
+            }
+            try {
+                return (Thread) UNSTARTED.invoke(name, task) ;
+            } catch (final Throwable th) {
+                throw new ManagedLifecycleException("Failed to create virtual thread " + name, th) ;
+            }
+        }
+    }
+}